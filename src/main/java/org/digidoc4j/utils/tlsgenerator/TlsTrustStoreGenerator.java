@@ -1,51 +1,98 @@
 package org.digidoc4j.utils.tlsgenerator;
 
+import org.digidoc4j.utils.tlsgenerator.cache.CachingCertificateChainFetcher;
+import org.digidoc4j.utils.tlsgenerator.cache.CertificateChainCache;
+import org.digidoc4j.utils.tlsgenerator.cache.DocumentCache;
 import org.digidoc4j.utils.tlsgenerator.cli.CommandLineArgument;
 import org.digidoc4j.utils.tlsgenerator.cli.CommandLineInterface;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorInputException;
+import org.digidoc4j.utils.tlsgenerator.extract.CertificateChainCompleter;
 import org.digidoc4j.utils.tlsgenerator.extract.CertificateChainExtractor;
+import org.digidoc4j.utils.tlsgenerator.extract.ExtractionDecisions;
 import org.digidoc4j.utils.tlsgenerator.extract.RedirectedUrlChainExtractor;
+import org.digidoc4j.utils.tlsgenerator.lotl.LotlFilesInputSource;
 import org.digidoc4j.utils.tlsgenerator.lotl.LotlUrlsInputSource;
+import org.digidoc4j.utils.tlsgenerator.lotl.TslPointerFilter;
+import org.digidoc4j.utils.tlsgenerator.tls.AsyncCertificateChainFetcher;
+import org.digidoc4j.utils.tlsgenerator.tls.CertificateChainFetchResult;
 import org.digidoc4j.utils.tlsgenerator.tls.CertificateChainFetcher;
+import org.digidoc4j.utils.tlsgenerator.tls.ConcurrentCertificateChainFetcher;
+import org.digidoc4j.utils.tlsgenerator.tls.ConnectionTimeouts;
+import org.digidoc4j.utils.tlsgenerator.tls.FetchTarget;
+import org.digidoc4j.utils.tlsgenerator.tls.PrimedCertificateChainFetcher;
+import org.digidoc4j.utils.tlsgenerator.tls.RetryingCertificateChainFetcher;
+import org.digidoc4j.utils.tlsgenerator.tls.SelectorCertificateChainFetcher;
+import org.digidoc4j.utils.tlsgenerator.tls.ThreadPoolCertificateChainFetcher;
 import org.digidoc4j.utils.tlsgenerator.tls.TlsProtocol;
 import org.digidoc4j.utils.tlsgenerator.tls.TlsUtils;
 import org.digidoc4j.utils.tlsgenerator.url.HttpUrlsInputSource;
 import org.digidoc4j.utils.tlsgenerator.url.UrlUtils;
+import org.digidoc4j.utils.tlsgenerator.x509.CertificateInterner;
 import org.digidoc4j.utils.tlsgenerator.x509.TrustStoreOutput;
+import org.digidoc4j.utils.tlsgenerator.x509.TrustStoreUpdate;
 import org.digidoc4j.utils.tlsgenerator.x509.X509Utils;
 
 import java.net.URL;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Paths;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public final class TlsTrustStoreGenerator {
 
+    private static final int DEFAULT_PARALLELISM = 1;
+    private static final int DEFAULT_CACHE_TTL = 24 * 60 * 60;
+    private static final int DEFAULT_RENEWAL_MARGIN = 30;
+    private static final int DEFAULT_RETRY_BACKOFF = 1000;
+    private static final int DEFAULT_MAX_CONCURRENT_TSLS = 4;
+
     public static void main(final String[] args) {
         try {
             final Map<CommandLineArgument, List<String>> options = CommandLineInterface.parseArguments(args);
             verifyArgumentsParameters(options);
 
-            final Set<X509Certificate> certificates = fetchCertificates(Stream.of(
+            final Optional<TrustStoreUpdate> trustStoreUpdate = options.containsKey(CommandLineArgument.UPDATE)
+                    ? TrustStoreUpdate.load(options, getRenewalMargin(options))
+                    : Optional.empty();
+
+            final Map<FetchTarget, Set<X509Certificate>> certificates = fetchCertificates(Stream.of(
                     new HttpUrlsInputSource(options.getOrDefault(CommandLineArgument.URL, Collections.emptyList())),
                     new LotlUrlsInputSource(options.getOrDefault(CommandLineArgument.LOTL, Collections.emptyList()),
-                            getTlsProtocol(options), options.containsKey(CommandLineArgument.FOLLOW_REDIRECTS))
-            ).flatMap(UrlsInputSource::stream).filter(UrlUtils.statefulDistinctFilter()), options);
+                            getTlsProtocol(options), getConnectionTimeouts(options), getMaxRedirects(options),
+                            getTslPointerFilter(options), getMaxConcurrentTsls(options), getErrorHandler(options), getDocumentCache(options)),
+                    new LotlFilesInputSource(options.getOrDefault(CommandLineArgument.LOTL_FILE, Collections.emptyList()),
+                            getTlsProtocol(options), getConnectionTimeouts(options), getMaxRedirects(options),
+                            getTslPointerFilter(options), getMaxConcurrentTsls(options), getErrorHandler(options), getDocumentCache(options))
+            ).flatMap(UrlsInputSource::stream).filter(UrlUtils.statefulDistinctFilter()), getUpToDateFilter(trustStoreUpdate), options);
 
             System.out.println();
-            System.out.println("Saving truststore: " + options.get(CommandLineArgument.OUT).get(0));
-            TrustStoreOutput.saveCertificatesToTruststore(certificates, options);
-            System.out.printf("Done%n").println();
+            final boolean written;
+            if (trustStoreUpdate.isPresent()) {
+                System.out.println("Updating truststore: " + options.get(CommandLineArgument.OUT).get(0));
+                written = trustStoreUpdate.get().apply(certificates);
+            } else {
+                System.out.println("Saving truststore: " + String.join(", ", options.get(CommandLineArgument.OUT)));
+                written = TrustStoreOutput.saveCertificatesToTruststore(certificates, options);
+            }
+            System.out.printf(written ? "Done%n" : "Done: unchanged%n").println();
         } catch (TlsGeneratorInputException exception) {
             outputErrorMessage(exception);
             System.out.println();
@@ -56,42 +103,142 @@ public final class TlsTrustStoreGenerator {
         }
     }
 
-    private static Set<X509Certificate> fetchCertificates(final Stream<URL> urls, final Map<CommandLineArgument, List<String>> options) {
+    private static Map<FetchTarget, Set<X509Certificate>> fetchCertificates(
+            final Stream<URL> urls, final Predicate<URL> urlFilter, final Map<CommandLineArgument, List<String>> options
+    ) {
         System.out.println();
         System.out.println("Fetching certificate chains...");
 
-        final List<List<X509Certificate>> certificateChains = urls
-                .flatMap(getUrlExtractor(options))
-                .filter(UrlUtils::isHttpsUrl)
-                .flatMap(getCertificateChainFetcher(options))
-                .distinct()
-                .collect(Collectors.toList());
+        final Function<CertificateChainFetchResult, Stream<List<X509Certificate>>> fetchResultHandler = getFetchResultHandler(options);
+        final Map<List<X509Certificate>, Set<FetchTarget>> targetsByChain = new LinkedHashMap<>();
+        try (Stream<CertificateChainFetchResult> fetchResults = fetchCertificateChains(urls, urlFilter, options)) {
+            fetchResults.forEach(fetchResult -> fetchResultHandler.apply(fetchResult).forEach(chain -> targetsByChain
+                    .computeIfAbsent(chain, c -> new LinkedHashSet<>())
+                    .add(FetchTarget.of(fetchResult.getUrl()))));
+        }
+
+        final Map<List<X509Certificate>, Set<FetchTarget>> completedTargetsByChain = completeCertificateChains(targetsByChain, options);
 
         System.out.println();
         System.out.println("Extracting certificates...");
 
-        return certificateChains.stream()
-                .flatMap(getChainExtractor(options))
-                .collect(Collectors.toSet());
+        final Function<List<X509Certificate>, Stream<X509Certificate>> chainExtractor = getChainExtractor(options);
+        final Map<FetchTarget, Set<X509Certificate>> certificatesByTarget = new LinkedHashMap<>();
+        completedTargetsByChain.forEach((chain, targets) -> {
+            final List<X509Certificate> certificates = chainExtractor.apply(chain).collect(Collectors.toList());
+            targets.forEach(target -> certificatesByTarget.computeIfAbsent(target, t -> new LinkedHashSet<>()).addAll(certificates));
+        });
+        return certificatesByTarget;
+    }
+
+    private static Map<List<X509Certificate>, Set<FetchTarget>> completeCertificateChains(
+            final Map<List<X509Certificate>, Set<FetchTarget>> targetsByChain, final Map<CommandLineArgument, List<String>> options
+    ) {
+        if (!options.containsKey(CommandLineArgument.COMPLETE_CHAINS)) {
+            return targetsByChain;
+        }
+
+        System.out.println();
+        System.out.println("Completing certificate chains...");
+
+        final CertificateChainCompleter certificateChainCompleter = new CertificateChainCompleter(
+                getTlsProtocol(options), getConnectionTimeouts(options), getErrorHandler(options));
+        final int parallelism = CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.PARALLELISM, 1, DEFAULT_PARALLELISM);
+        final List<List<X509Certificate>> chains = new ArrayList<>(targetsByChain.keySet());
+        final List<List<X509Certificate>> completedChains = certificateChainCompleter.completeCertificateChains(chains, parallelism);
+
+        // Different chains may complete to the same chain, e.g. a leaf alone and the leaf along with its issuer
+        final Map<List<X509Certificate>, Set<FetchTarget>> completedTargetsByChain = new LinkedHashMap<>();
+        for (int i = 0; i < chains.size(); ++i) {
+            completedTargetsByChain.computeIfAbsent(completedChains.get(i), c -> new LinkedHashSet<>()).addAll(targetsByChain.get(chains.get(i)));
+        }
+        return completedTargetsByChain;
+    }
+
+    private static Predicate<URL> getUpToDateFilter(final Optional<TrustStoreUpdate> trustStoreUpdate) {
+        return trustStoreUpdate.<Predicate<URL>>map(update -> url -> {
+            if (update.isUpToDate(FetchTarget.of(url))) {
+                System.out.println(url + ": up to date");
+                return false;
+            }
+            return true;
+        }).orElse(url -> true);
     }
 
-    private static Function<URL, Stream<URL>> getUrlExtractor(final Map<CommandLineArgument, List<String>> options) {
+    private static UnaryOperator<Stream<URL>> getUrlExtractor(final Map<CommandLineArgument, List<String>> options, final int parallelism,
+                                                              final BiConsumer<URL, List<X509Certificate>> certificateChainConsumer) {
         if (options.containsKey(CommandLineArgument.FOLLOW_REDIRECTS)) {
-            final RedirectedUrlChainExtractor redirectedUrlChainExtractor = new RedirectedUrlChainExtractor(getTlsProtocol(options), getErrorHandler(options));
-            return url -> redirectedUrlChainExtractor.extractRedirectionUrlChain(url).stream();
+            final RedirectedUrlChainExtractor redirectedUrlChainExtractor = new RedirectedUrlChainExtractor(
+                    getTlsProtocol(options), getConnectionTimeouts(options), getErrorHandler(options), getMaxRedirects(options),
+                    certificateChainConsumer);
+            return urls -> redirectedUrlChainExtractor.extractRedirectionUrlChains(urls, parallelism);
         } else {
-            return Stream::of;
+            return UnaryOperator.identity();
         }
     }
 
-    private static Function<URL, Stream<List<X509Certificate>>> getCertificateChainFetcher(final Map<CommandLineArgument, List<String>> options) {
-        final CertificateChainFetcher certificateChainFetcher = new CertificateChainFetcher(getTlsProtocol(options));
+    private static Stream<CertificateChainFetchResult> fetchCertificateChains(final Stream<URL> urls, final Predicate<URL> urlFilter,
+                                                                              final Map<CommandLineArgument, List<String>> options) {
+        final int parallelism = CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.PARALLELISM, 1, DEFAULT_PARALLELISM);
+        final int maxConnectionsPerHost = CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.MAX_CONNECTIONS_PER_HOST, 1, Integer.MAX_VALUE);
+
+        // Certificate chains captured while following redirects are served without connecting again
+        final PrimedCertificateChainFetcher primedCertificateChainFetcher = new PrimedCertificateChainFetcher(
+                createCertificateChainFetcher(options, parallelism));
+        final AsyncCertificateChainFetcher certificateChainFetcher = withCache(primedCertificateChainFetcher, options);
+        try {
+            return new ConcurrentCertificateChainFetcher(certificateChainFetcher, parallelism, maxConnectionsPerHost,
+                    options.containsKey(CommandLineArgument.ALL_ADDRESSES), TlsTrustStoreGenerator::outputErrorMessage)
+                    .fetchCertificateChains(getUrlExtractor(options, parallelism, primedCertificateChainFetcher::prime).apply(urls)
+                            .filter(UrlUtils::isHttpsUrl)
+                            .filter(UrlUtils.statefulDistinctFilter())
+                            .filter(urlFilter))
+                    .onClose(certificateChainFetcher::close);
+        } catch (RuntimeException e) {
+            certificateChainFetcher.close();
+            throw e;
+        }
+    }
+
+    private static AsyncCertificateChainFetcher createCertificateChainFetcher(final Map<CommandLineArgument, List<String>> options, final int parallelism) {
+        final boolean abortAfterCapture = options.containsKey(CommandLineArgument.ABORT_AFTER_CAPTURE);
+        AsyncCertificateChainFetcher certificateChainFetcher = options.containsKey(CommandLineArgument.NON_BLOCKING)
+                ? new SelectorCertificateChainFetcher(getTlsProtocol(options), getConnectionTimeouts(options), abortAfterCapture)
+                : new ThreadPoolCertificateChainFetcher(new CertificateChainFetcher(getTlsProtocol(options), getConnectionTimeouts(options), abortAfterCapture), parallelism);
+
+        final int retries = CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.RETRIES, 0, 0);
+        final int failureThreshold = CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.CIRCUIT_BREAKER_THRESHOLD, 0, 0);
+        if (retries > 0 || failureThreshold > 0) {
+            final int retryBackoff = CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.RETRY_BACKOFF, 0, DEFAULT_RETRY_BACKOFF);
+            certificateChainFetcher = new RetryingCertificateChainFetcher(certificateChainFetcher, retries, retryBackoff, failureThreshold,
+                    TlsTrustStoreGenerator::outputErrorMessage);
+        }
+        return certificateChainFetcher;
+    }
+
+    private static AsyncCertificateChainFetcher withCache(final AsyncCertificateChainFetcher certificateChainFetcher,
+                                                          final Map<CommandLineArgument, List<String>> options) {
+        if (options.containsKey(CommandLineArgument.CACHE_DIR)) {
+            final CertificateChainCache cache = new CertificateChainCache(
+                    Paths.get(options.get(CommandLineArgument.CACHE_DIR).get(0)),
+                    Duration.ofSeconds(CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.CACHE_TTL, 0, DEFAULT_CACHE_TTL)),
+                    TlsTrustStoreGenerator::outputErrorMessage
+            );
+            return new CachingCertificateChainFetcher(certificateChainFetcher, cache);
+        }
+        return certificateChainFetcher;
+    }
+
+    private static Function<CertificateChainFetchResult, Stream<List<X509Certificate>>> getFetchResultHandler(final Map<CommandLineArgument, List<String>> options) {
         final Consumer<TlsGeneratorException> errorHandler = getErrorHandler(options);
-        return url -> {
+        return fetchResult -> {
             try {
-                final List<X509Certificate> chain = certificateChainFetcher.fetchCertificateChainFrom(url);
-                System.out.println(url + ": " + X509Utils.getCertificatesSimpleNames(chain));
-                return Stream.of(chain);
+                // Chains of different endpoints share most of their certificates, keep only one instance of each
+                final List<List<X509Certificate>> chains = fetchResult.getCertificateChains().stream()
+                        .map(CertificateInterner::internChain)
+                        .collect(Collectors.toList());
+                chains.forEach(chain -> System.out.println(fetchResult.getUrl() + ": " + X509Utils.getCertificatesSimpleNames(chain)));
+                return chains.stream();
             } catch (TlsGeneratorException exception) {
                 errorHandler.accept(exception);
                 return Stream.empty();
@@ -101,7 +248,7 @@ public final class TlsTrustStoreGenerator {
 
     private static Function<List<X509Certificate>, Stream<X509Certificate>> getChainExtractor(final Map<CommandLineArgument, List<String>> options) {
         final UnaryOperator<List<X509Certificate>> extractor = options.containsKey(CommandLineArgument.EXTRACT_FROM_CHAIN)
-                ? CertificateChainExtractor.createCertificateChainExtractor(options.get(CommandLineArgument.EXTRACT_FROM_CHAIN))
+                ? CertificateChainExtractor.createCertificateChainExtractor(options.get(CommandLineArgument.EXTRACT_FROM_CHAIN), getExtractionDecisions(options))
                 : UnaryOperator.identity();
         return chain -> {
             final List<X509Certificate> extractedList = extractor.apply(chain);
@@ -110,6 +257,12 @@ public final class TlsTrustStoreGenerator {
         };
     }
 
+    private static ExtractionDecisions getExtractionDecisions(final Map<CommandLineArgument, List<String>> options) {
+        return options.containsKey(CommandLineArgument.DECISIONS_FILE)
+                ? ExtractionDecisions.load(Paths.get(options.get(CommandLineArgument.DECISIONS_FILE).get(0)))
+                : ExtractionDecisions.inMemory();
+    }
+
     private static Consumer<TlsGeneratorException> getErrorHandler(final Map<CommandLineArgument, List<String>> options) {
         return options.containsKey(CommandLineArgument.CONTINUE_ON_ERROR)
                 ? TlsTrustStoreGenerator::outputErrorMessage
@@ -124,11 +277,78 @@ public final class TlsTrustStoreGenerator {
         if (options.containsKey(CommandLineArgument.TLS_PROTOCOL)) {
             TlsUtils.getValidTlsProtocol(options.get(CommandLineArgument.TLS_PROTOCOL).get(0));
         }
-        try {
-            Paths.get(options.get(CommandLineArgument.OUT).get(0));
-        } catch (InvalidPathException e) {
-            throw new TlsGeneratorInputException("Invalid output parameter: " + e.getMessage(), e);
+        CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.PARALLELISM, 1, DEFAULT_PARALLELISM);
+        CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.MAX_CONNECTIONS_PER_HOST, 1, Integer.MAX_VALUE);
+        getConnectionTimeouts(options);
+        CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.CACHE_TTL, 0, DEFAULT_CACHE_TTL);
+        getRenewalMargin(options);
+        getMaxConcurrentTsls(options);
+        getMaxRedirects(options);
+        getTslPointerFilter(options);
+        CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.RETRIES, 0, 0);
+        CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.RETRY_BACKOFF, 0, DEFAULT_RETRY_BACKOFF);
+        CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.CIRCUIT_BREAKER_THRESHOLD, 0, 0);
+        TrustStoreOutput.verifyOutputParameters(options);
+        if (options.containsKey(CommandLineArgument.CACHE_DIR)) {
+            try {
+                Paths.get(options.get(CommandLineArgument.CACHE_DIR).get(0));
+            } catch (InvalidPathException e) {
+                throw new TlsGeneratorInputException("Invalid cache directory parameter: " + e.getMessage(), e);
+            }
         }
+        if (options.containsKey(CommandLineArgument.DECISIONS_FILE)) {
+            try {
+                Paths.get(options.get(CommandLineArgument.DECISIONS_FILE).get(0));
+            } catch (InvalidPathException e) {
+                throw new TlsGeneratorInputException("Invalid decisions file parameter: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static ConnectionTimeouts getConnectionTimeouts(final Map<CommandLineArgument, List<String>> options) {
+        return new ConnectionTimeouts(
+                CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.CONNECT_TIMEOUT, 0, ConnectionTimeouts.DEFAULT_CONNECT_TIMEOUT),
+                CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.HANDSHAKE_TIMEOUT, 0, ConnectionTimeouts.DEFAULT_HANDSHAKE_TIMEOUT)
+        );
+    }
+
+    private static int getMaxRedirects(final Map<CommandLineArgument, List<String>> options) {
+        return options.containsKey(CommandLineArgument.FOLLOW_REDIRECTS)
+                ? CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.FOLLOW_REDIRECTS, 1, RedirectedUrlChainExtractor.DEFAULT_MAX_REDIRECTS)
+                : 0;
+    }
+
+    private static TslPointerFilter getTslPointerFilter(final Map<CommandLineArgument, List<String>> options) {
+        Pattern urlPattern = null;
+        if (options.containsKey(CommandLineArgument.TSL_URL_PATTERN)) {
+            try {
+                urlPattern = Pattern.compile(options.get(CommandLineArgument.TSL_URL_PATTERN).get(0));
+            } catch (PatternSyntaxException e) {
+                throw new TlsGeneratorInputException("Invalid TSL URL pattern: " + e.getDescription(), e);
+            }
+        }
+        return new TslPointerFilter(
+                options.getOrDefault(CommandLineArgument.INCLUDE_TERRITORIES, Collections.emptyList()),
+                options.getOrDefault(CommandLineArgument.EXCLUDE_TERRITORIES, Collections.emptyList()),
+                options.getOrDefault(CommandLineArgument.TSL_MIME_TYPES, Collections.emptyList()),
+                urlPattern
+        );
+    }
+
+    private static DocumentCache getDocumentCache(final Map<CommandLineArgument, List<String>> options) {
+        return options.containsKey(CommandLineArgument.CACHE_DIR)
+                ? new DocumentCache(Paths.get(options.get(CommandLineArgument.CACHE_DIR).get(0)), TlsTrustStoreGenerator::outputErrorMessage)
+                : null;
+    }
+
+    private static int getMaxConcurrentTsls(final Map<CommandLineArgument, List<String>> options) {
+        return options.containsKey(CommandLineArgument.TSL_SERVICE_URLS)
+                ? CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.TSL_SERVICE_URLS, 1, DEFAULT_MAX_CONCURRENT_TSLS)
+                : 0;
+    }
+
+    private static Duration getRenewalMargin(final Map<CommandLineArgument, List<String>> options) {
+        return Duration.ofDays(CommandLineInterface.getIntegerParameterOrDefault(options, CommandLineArgument.UPDATE, 0, DEFAULT_RENEWAL_MARGIN));
     }
 
     private static TlsProtocol getTlsProtocol(final Map<CommandLineArgument, List<String>> options) {
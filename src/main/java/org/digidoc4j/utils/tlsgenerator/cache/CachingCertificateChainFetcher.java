@@ -0,0 +1,66 @@
+package org.digidoc4j.utils.tlsgenerator.cache;
+
+import org.digidoc4j.utils.tlsgenerator.concurrent.ConcurrencyUtils;
+import org.digidoc4j.utils.tlsgenerator.tls.AsyncCertificateChainFetcher;
+import org.digidoc4j.utils.tlsgenerator.tls.FetchTarget;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves certificate chains from a {@link CertificateChainCache} when possible,
+ * and stores the chains fetched by the underlying fetcher into the cache otherwise.
+ * <p>
+ * Fetched chains are stored on a separate thread, so that the underlying fetcher never waits for the cache to be
+ * written (e.g. on the selector thread of a non-blocking fetcher). Pending stores are finished when closing.
+ */
+public final class CachingCertificateChainFetcher implements AsyncCertificateChainFetcher {
+
+    private static final String THREAD_NAME_PREFIX = "certificate-chain-cache-";
+    private static final long STORE_COMPLETION_TIMEOUT = 10_000L;
+
+    private final AsyncCertificateChainFetcher fetcher;
+    private final CertificateChainCache cache;
+    private final ExecutorService storeExecutor;
+
+    public CachingCertificateChainFetcher(final AsyncCertificateChainFetcher asyncCertificateChainFetcher, final CertificateChainCache certificateChainCache) {
+        fetcher = Objects.requireNonNull(asyncCertificateChainFetcher);
+        cache = Objects.requireNonNull(certificateChainCache);
+        storeExecutor = Executors.newSingleThreadExecutor(ConcurrencyUtils.createDaemonThreadFactory(THREAD_NAME_PREFIX));
+    }
+
+    @Override
+    public CompletableFuture<List<X509Certificate>> fetchCertificateChainAsync(final URL url, final InetAddress address) {
+        final FetchTarget target = FetchTarget.of(url).withAddress(address);
+        final Optional<List<X509Certificate>> cachedChain = cache.get(target);
+        if (cachedChain.isPresent()) {
+            return CompletableFuture.completedFuture(cachedChain.get());
+        }
+        final CompletableFuture<List<X509Certificate>> fetch = fetcher.fetchCertificateChainAsync(url, address);
+        fetch.thenAcceptAsync(chain -> cache.put(target, chain), storeExecutor);
+        return fetch;
+    }
+
+    @Override
+    public void close() {
+        try {
+            fetcher.close();
+        } finally {
+            storeExecutor.shutdown();
+            try {
+                storeExecutor.awaitTermination(STORE_COMPLETION_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
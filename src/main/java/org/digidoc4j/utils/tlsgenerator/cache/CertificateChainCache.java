@@ -0,0 +1,113 @@
+package org.digidoc4j.utils.tlsgenerator.cache;
+
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.tls.FetchTarget;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertPath;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Persistent on-disk cache of certificate chains, stored as DER-encoded {@code PkiPath} files, one per {@link FetchTarget}.
+ * <p>
+ * A cached chain is considered valid until its time-to-live has passed since it was stored, or until the leaf
+ * certificate of the chain would expire within the time-to-live, whichever comes first.
+ */
+public final class CertificateChainCache {
+
+    private static final String CHAINS_DIRECTORY = "chains";
+    private static final String FILE_EXTENSION = ".pkipath";
+    private static final String CERT_PATH_ENCODING = "PkiPath";
+    private static final String CERTIFICATE_TYPE = "X.509";
+
+    private final Path directory;
+    private final Duration timeToLive;
+    private final Consumer<TlsGeneratorException> warningHandler;
+
+    /**
+     * @param cacheDirectory cache directory, the chains are stored in its {@value #CHAINS_DIRECTORY} subdirectory
+     * @param timeToLive time-to-live of the cached chains
+     * @param warningHandler handler of the failures to read or write cache entries, which do not fail the fetches
+     */
+    public CertificateChainCache(final Path cacheDirectory, final Duration timeToLive, final Consumer<TlsGeneratorException> warningHandler) {
+        this.directory = Objects.requireNonNull(cacheDirectory).resolve(CHAINS_DIRECTORY);
+        this.timeToLive = Objects.requireNonNull(timeToLive);
+        this.warningHandler = Objects.requireNonNull(warningHandler);
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new TlsGeneratorTechnicalException("Failed to create cache directory: " + directory + ": " + e.getMessage(), e);
+        }
+    }
+
+    public Optional<List<X509Certificate>> get(final FetchTarget target) {
+        final Path file = getCacheFile(target);
+        try {
+            final Instant now = Instant.now();
+            if (Files.getLastModifiedTime(file).toInstant().plus(timeToLive).isBefore(now)) {
+                return Optional.empty();
+            }
+
+            final List<X509Certificate> chain;
+            try (InputStream in = Files.newInputStream(file)) {
+                chain = CertificateFactory.getInstance(CERTIFICATE_TYPE).generateCertPath(in, CERT_PATH_ENCODING)
+                        .getCertificates().stream()
+                        .map(X509Certificate.class::cast)
+                        .collect(Collectors.toList());
+            }
+            if (chain.isEmpty() || chain.get(0).getNotAfter().toInstant().isBefore(now.plus(timeToLive))) {
+                return Optional.empty(); // The leaf is about to expire, the server has probably been or will soon be updated
+            }
+            return Optional.of(Collections.unmodifiableList(chain));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException | CertificateException | ClassCastException e) {
+            warningHandler.accept(new TlsGeneratorTechnicalException("Ignoring unreadable cache entry for " + target + ": " + e.getMessage(), e));
+            return Optional.empty();
+        }
+    }
+
+    public void put(final FetchTarget target, final List<X509Certificate> chain) {
+        final Path file = getCacheFile(target);
+        try {
+            final CertPath certPath = CertificateFactory.getInstance(CERTIFICATE_TYPE).generateCertPath(chain);
+            final Path temporaryFile = Files.createTempFile(directory, null, null);
+            try {
+                Files.write(temporaryFile, certPath.getEncoded(CERT_PATH_ENCODING));
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        } catch (IOException | CertificateException e) {
+            warningHandler.accept(new TlsGeneratorTechnicalException("Failed to cache certificate chain of " + target + ": " + e.getMessage(), e));
+        }
+    }
+
+    private Path getCacheFile(final FetchTarget target) {
+        try {
+            final String address = target.getAddress().map(a -> '_' + a.getHostAddress()).orElse("");
+            return directory.resolve(URLEncoder.encode(target.getHost() + '_' + target.getPort() + address, "UTF-8") + FILE_EXTENSION);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+package org.digidoc4j.utils.tlsgenerator.cache;
+
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * Persistent on-disk cache of downloaded documents (LOTLs and TSLs), for revalidating them with conditional requests.
+ * <p>
+ * Each document is stored as its (decoded) body along with the {@code ETag} and {@code Last-Modified} validators
+ * the server sent with it, in files named after the SHA-256 digest of the document URL. The body is always replaced
+ * before the validators, so that an interrupted update can only cause a redundant download, never a stale document.
+ */
+public final class DocumentCache {
+
+    private static final String DOCUMENTS_DIRECTORY = "documents";
+    private static final String BODY_FILE_EXTENSION = ".body";
+    private static final String VALIDATORS_FILE_EXTENSION = ".properties";
+    private static final String URL_PROPERTY = "url";
+    private static final String ETAG_PROPERTY = "etag";
+    private static final String LAST_MODIFIED_PROPERTY = "last-modified";
+
+    private final Path directory;
+    private final Consumer<TlsGeneratorException> warningHandler;
+
+    /**
+     * @param cacheDirectory cache directory, the documents are stored in its {@value #DOCUMENTS_DIRECTORY} subdirectory
+     * @param warningHandler handler of the failures to read or write cache entries, which do not fail the downloads
+     */
+    public DocumentCache(final Path cacheDirectory, final Consumer<TlsGeneratorException> warningHandler) {
+        this.directory = Objects.requireNonNull(cacheDirectory).resolve(DOCUMENTS_DIRECTORY);
+        this.warningHandler = Objects.requireNonNull(warningHandler);
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new TlsGeneratorTechnicalException("Failed to create cache directory: " + directory + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param url document URL
+     *
+     * @return the cached document, or an empty optional if the document is not cached or has no validators
+     */
+    public Optional<CachedDocument> get(final URL url) {
+        final String fileName = getFileName(url);
+        final Properties validators = new Properties();
+        try (Reader in = Files.newBufferedReader(directory.resolve(fileName + VALIDATORS_FILE_EXTENSION), StandardCharsets.UTF_8)) {
+            validators.load(in);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            warn("Ignoring unreadable cache entry for " + url, e);
+            return Optional.empty();
+        }
+
+        final Path body = directory.resolve(fileName + BODY_FILE_EXTENSION);
+        final CachedDocument document = new CachedDocument(url, body,
+                validators.getProperty(ETAG_PROPERTY), validators.getProperty(LAST_MODIFIED_PROPERTY));
+        if (!url.toExternalForm().equals(validators.getProperty(URL_PROPERTY)) || !Files.isRegularFile(body)
+                || (document.etag == null && document.lastModified == null)) {
+            return Optional.empty();
+        }
+        return Optional.of(document);
+    }
+
+    /**
+     * Wraps the body of a freshly downloaded document into a stream that stores the body in the cache while it is
+     * being read. The document is stored when the stream is closed, provided that the whole body could be read;
+     * whatever has not been read by then is read to the end first.
+     *
+     * @param url document URL
+     * @param etag value of the {@code ETag} header, or {@code null}
+     * @param lastModified value of the {@code Last-Modified} header, or {@code null}
+     * @param body decoded body of the document
+     *
+     * @return stream of the body of the document
+     */
+    public InputStream put(final URL url, final String etag, final String lastModified, final InputStream body) {
+        if (etag == null && lastModified == null) {
+            return body; // Nothing to revalidate the document with
+        }
+        try {
+            return new CachingInputStream(url, etag, lastModified, body, Files.createTempFile(directory, null, null));
+        } catch (IOException e) {
+            warn("Failed to cache document " + url, e);
+            return body;
+        }
+    }
+
+    private void warn(final String message, final IOException cause) {
+        warningHandler.accept(new TlsGeneratorTechnicalException(message + ": " + cause.getMessage(), cause));
+    }
+
+    private String getFileName(final URL url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.toExternalForm().getBytes(StandardCharsets.UTF_8));
+            final StringBuilder fileName = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                fileName.append(String.format("%02x", b));
+            }
+            return fileName.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public final class CachedDocument {
+
+        private final URL url;
+        private final Path body;
+        private final String etag;
+        private final String lastModified;
+
+        private CachedDocument(final URL url, final Path body, final String etag, final String lastModified) {
+            this.url = url;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public Optional<String> getETag() {
+            return Optional.ofNullable(etag);
+        }
+
+        public Optional<String> getLastModified() {
+            return Optional.ofNullable(lastModified);
+        }
+
+        /**
+         * @return stream of the cached body, or an empty optional if the body has become unreadable since the
+         * document was looked up (reported as a warning)
+         */
+        public Optional<InputStream> openBody() {
+            try {
+                return Optional.of(Files.newInputStream(body));
+            } catch (IOException e) {
+                warn("Ignoring unreadable cache entry for " + url, e);
+                return Optional.empty();
+            }
+        }
+
+    }
+
+    private final class CachingInputStream extends FilterInputStream {
+
+        private final URL url;
+        private final String etag;
+        private final String lastModified;
+        private final Path temporaryFile;
+        private OutputStream copy;
+
+        CachingInputStream(final URL url, final String etag, final String lastModified, final InputStream in,
+                           final Path temporaryFile) throws IOException {
+            super(in);
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.temporaryFile = temporaryFile;
+            this.copy = new BufferedOutputStream(Files.newOutputStream(temporaryFile));
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                write(buffer, offset, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            final int count = read(buffer, 0, buffer.length);
+            return Math.max(count, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (copy != null) {
+                    final byte[] buffer = new byte[8192];
+                    while (copy != null && read(buffer, 0, buffer.length) >= 0) {
+                        // Read the rest of the body into the cache
+                    }
+                    if (copy != null) {
+                        copy.close();
+                        copy = null;
+                        store();
+                    }
+                }
+            } catch (IOException e) {
+                warn("Failed to cache document " + url, e);
+            } finally {
+                discardCopy();
+                super.close();
+            }
+        }
+
+        private void write(final byte[] buffer, final int offset, final int length) {
+            if (copy == null) {
+                return;
+            }
+            try {
+                copy.write(buffer, offset, length);
+            } catch (IOException e) {
+                warn("Failed to cache document " + url, e);
+                discardCopy();
+            }
+        }
+
+        private void store() throws IOException {
+            final String fileName = getFileName(url);
+            Files.move(temporaryFile, directory.resolve(fileName + BODY_FILE_EXTENSION),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            final Properties validators = new Properties();
+            validators.setProperty(URL_PROPERTY, url.toExternalForm());
+            if (etag != null) {
+                validators.setProperty(ETAG_PROPERTY, etag);
+            }
+            if (lastModified != null) {
+                validators.setProperty(LAST_MODIFIED_PROPERTY, lastModified);
+            }
+            final Path temporaryValidatorsFile = Files.createTempFile(directory, null, null);
+            try {
+                try (Writer out = Files.newBufferedWriter(temporaryValidatorsFile, StandardCharsets.UTF_8)) {
+                    validators.store(out, null);
+                }
+                Files.move(temporaryValidatorsFile, directory.resolve(fileName + VALIDATORS_FILE_EXTENSION),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryValidatorsFile);
+            }
+        }
+
+        private void discardCopy() {
+            try {
+                if (copy != null) {
+                    copy.close();
+                    copy = null;
+                }
+                Files.deleteIfExists(temporaryFile);
+            } catch (IOException e) {
+                // Nothing more to do about a leftover temporary file
+            }
+        }
+
+    }
+
+}
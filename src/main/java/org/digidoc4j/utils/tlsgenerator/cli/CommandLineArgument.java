@@ -8,14 +8,35 @@ public enum CommandLineArgument {
 
     URL(CommandLineArgumentGroup.IN, 1, Integer.MAX_VALUE, "--url"),
     LOTL(CommandLineArgumentGroup.IN, 1, Integer.MAX_VALUE, "--lotl-url", "--lotl"),
-    OUT(CommandLineArgumentGroup.OUT, 1, "--out", "-o"),
+    LOTL_FILE(CommandLineArgumentGroup.IN, 1, Integer.MAX_VALUE, "--lotl-file"),
+    OUT(CommandLineArgumentGroup.OUT, 1, Integer.MAX_VALUE, "--out", "-o"),
 
-    TYPE(1, "--type", "-t"),
+    TYPE(1, Integer.MAX_VALUE, "--type", "-t"),
     PASSWORD(1, "--password", "-p"),
     TLS_PROTOCOL(1, "--tls-protocol", "--tls"),
     EXTRACT_FROM_CHAIN(1, Integer.MAX_VALUE, "--extract-from-chain"),
+    DECISIONS_FILE(1, "--decisions-file"),
+    COMPLETE_CHAINS("--complete-chains"),
     CONTINUE_ON_ERROR("--continue-on-error"),
-    FOLLOW_REDIRECTS("--follow-redirects"),
+    FOLLOW_REDIRECTS(0, 1, "--follow-redirects"),
+    INCLUDE_TERRITORIES(1, Integer.MAX_VALUE, "--include-territories"),
+    EXCLUDE_TERRITORIES(1, Integer.MAX_VALUE, "--exclude-territories"),
+    TSL_MIME_TYPES(1, Integer.MAX_VALUE, "--tsl-mime-types"),
+    TSL_URL_PATTERN(1, "--tsl-url-pattern"),
+    TSL_SERVICE_URLS(0, 1, "--tsl-service-urls"),
+    PARALLELISM(1, "--parallelism"),
+    MAX_CONNECTIONS_PER_HOST(1, "--max-connections-per-host"),
+    NON_BLOCKING("--non-blocking"),
+    ALL_ADDRESSES("--all-addresses"),
+    CONNECT_TIMEOUT(1, "--connect-timeout"),
+    HANDSHAKE_TIMEOUT(1, "--handshake-timeout"),
+    ABORT_AFTER_CAPTURE("--abort-after-capture"),
+    RETRIES(1, "--retries"),
+    RETRY_BACKOFF(1, "--retry-backoff"),
+    CIRCUIT_BREAKER_THRESHOLD(1, "--circuit-breaker-threshold"),
+    CACHE_DIR(1, "--cache-dir"),
+    CACHE_TTL(1, "--cache-ttl"),
+    UPDATE(0, 1, "--update"),
 
     HELP("--help", "-h");
 
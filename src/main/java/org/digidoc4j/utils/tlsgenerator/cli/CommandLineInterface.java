@@ -46,6 +46,26 @@ public final class CommandLineInterface {
         return Collections.unmodifiableMap(parsedArguments);
     }
 
+    public static int getIntegerParameterOrDefault(
+            final Map<CommandLineArgument, List<String>> options, final CommandLineArgument argument,
+            final int minValue, final int defaultValue
+    ) {
+        if (!options.containsKey(argument) || options.get(argument).isEmpty()) {
+            return defaultValue;
+        }
+        final String parameter = options.get(argument).get(0);
+        try {
+            final int value = Integer.parseInt(parameter);
+            if (value >= minValue) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            throw new TlsGeneratorInputException("Invalid " + argument.getFormalNames().get(0) + " parameter: " + parameter, e);
+        }
+        throw new TlsGeneratorInputException(String.format("Invalid %s parameter: %s (minimum value is %d)",
+                argument.getFormalNames().get(0), parameter, minValue));
+    }
+
     private static List<String> parseArgumentParameters(final CommandLineArgument argument, final String[] source, final int offset) {
         final List<String> parsedArgumentParameters = new ArrayList<>(argument.getMinParameterCount());
 
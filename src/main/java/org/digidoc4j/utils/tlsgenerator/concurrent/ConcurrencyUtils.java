@@ -0,0 +1,143 @@
+package org.digidoc4j.utils.tlsgenerator.concurrent;
+
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public final class ConcurrencyUtils {
+
+    public static <T> CompletableFuture<T> failedFuture(final Throwable throwable) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+
+    public static Throwable unwrapCompletionException(final Throwable throwable) {
+        if ((throwable instanceof CompletionException || throwable instanceof ExecutionException) && throwable.getCause() != null) {
+            return throwable.getCause();
+        }
+        return throwable;
+    }
+
+    public static ThreadFactory createDaemonThreadFactory(final String threadNamePrefix) {
+        final AtomicInteger threadCounter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, threadNamePrefix + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Flat-maps the elements of a stream concurrently, with up to {@code maxConcurrentMappings} mappings in progress
+     * at any time, and passes the results downstream in the order of the input elements.
+     * <p>
+     * When the returned stream is consumed by its terminal operation, the input stream is consumed by its terminal
+     * operation as well, and the results are passed downstream as soon as the results of all the preceding elements
+     * have been. When the returned stream is iterated element by element, the whole input is mapped on the first access.
+     * Exceptions thrown by the mapper are rethrown to the consumer of the returned stream.
+     *
+     * @param input stream of elements to map
+     * @param mapper mapping function, invoked on worker threads
+     * @param maxConcurrentMappings maximum number of mappings in progress at any time
+     * @param threadNamePrefix prefix of the names of the worker threads
+     * @param <T> type of input elements
+     * @param <R> type of results
+     *
+     * @return stream of results
+     */
+    public static <T, R> Stream<R> flatMapConcurrently(final Stream<T> input, final Function<? super T, ? extends Collection<? extends R>> mapper,
+                                                       final int maxConcurrentMappings, final String threadNamePrefix) {
+        if (maxConcurrentMappings < 1) {
+            throw new IllegalArgumentException("Max concurrent mappings must be positive");
+        }
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<R>(Long.MAX_VALUE, Spliterator.ORDERED) {
+
+            private Iterator<R> bufferedResults;
+
+            @Override
+            public boolean tryAdvance(final Consumer<? super R> action) {
+                if (bufferedResults == null) {
+                    final List<R> results = new ArrayList<>();
+                    flatMapConcurrently(input, mapper, maxConcurrentMappings, threadNamePrefix, results::add);
+                    bufferedResults = results.iterator();
+                }
+                if (bufferedResults.hasNext()) {
+                    action.accept(bufferedResults.next());
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void forEachRemaining(final Consumer<? super R> action) {
+                if (bufferedResults == null) {
+                    bufferedResults = Collections.emptyIterator();
+                    flatMapConcurrently(input, mapper, maxConcurrentMappings, threadNamePrefix, action);
+                } else {
+                    super.forEachRemaining(action);
+                }
+            }
+
+        }, false).onClose(input::close);
+    }
+
+    private static <T, R> void flatMapConcurrently(final Stream<T> input, final Function<? super T, ? extends Collection<? extends R>> mapper,
+                                                   final int maxConcurrentMappings, final String threadNamePrefix,
+                                                   final Consumer<? super R> action) {
+        final ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentMappings, createDaemonThreadFactory(threadNamePrefix));
+        final Deque<Future<? extends Collection<? extends R>>> pendingMappings = new ArrayDeque<>();
+        try {
+            input.forEach(element -> {
+                pendingMappings.add(executor.submit(() -> mapper.apply(element)));
+                while (pendingMappings.size() >= maxConcurrentMappings || (!pendingMappings.isEmpty() && pendingMappings.peek().isDone())) {
+                    awaitResults(pendingMappings.poll()).forEach(action);
+                }
+            });
+            while (!pendingMappings.isEmpty()) {
+                awaitResults(pendingMappings.poll()).forEach(action);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <R> Collection<? extends R> awaitResults(final Future<? extends Collection<? extends R>> pendingMapping) {
+        try {
+            return pendingMapping.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TlsGeneratorTechnicalException("Interrupted while waiting for results", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    private ConcurrencyUtils() {}
+
+}
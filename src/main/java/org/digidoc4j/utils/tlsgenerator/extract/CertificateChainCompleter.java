@@ -0,0 +1,255 @@
+package org.digidoc4j.utils.tlsgenerator.extract;
+
+import org.digidoc4j.utils.tlsgenerator.concurrent.ConcurrencyUtils;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.tls.ConnectionTimeouts;
+import org.digidoc4j.utils.tlsgenerator.tls.SharedTlsContext;
+import org.digidoc4j.utils.tlsgenerator.tls.TlsProtocol;
+import org.digidoc4j.utils.tlsgenerator.url.UrlUtils;
+import org.digidoc4j.utils.tlsgenerator.x509.CertificateInfo;
+import org.digidoc4j.utils.tlsgenerator.x509.CertificateInterner;
+import org.digidoc4j.utils.tlsgenerator.x509.X509Utils;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Completes certificate chains that end in an end-entity certificate, as sent by servers that omit their intermediate
+ * certificates, by following the caIssuers URLs of the Authority Information Access extension.
+ * <p>
+ * Issuers are looked up by their key identifiers first: the issuers known from any of the chains being completed, or
+ * fetched for any of them, are never fetched again. Otherwise, the caIssuers URLs of the certificate are tried in
+ * order. Each URL is fetched at most once, also when multiple chains are completed concurrently and need the same
+ * issuer at the same time; failed fetches are not memoised.
+ */
+public final class CertificateChainCompleter {
+
+    private static final String THREAD_NAME_PREFIX = "chain-completer-";
+    private static final int MAX_ISSUER_RESPONSE_LENGTH = 1024 * 1024;
+    private static final int MAX_ADDED_ISSUERS = 4;
+
+    private final TlsProtocol protocol;
+    private final ConnectionTimeouts timeouts;
+    private final Consumer<TlsGeneratorException> handler;
+    private final Map<String, CompletableFuture<List<CertificateInfo>>> certificatesByUrl = new ConcurrentHashMap<>();
+    private final Map<String, List<CertificateInfo>> issuersByKeyId = new ConcurrentHashMap<>();
+
+    /**
+     * @param tlsProtocol TLS protocol for fetching issuers from HTTPS URLs
+     * @param connectionTimeouts connection timeouts
+     * @param errorHandler handler of issuer fetching errors
+     */
+    public CertificateChainCompleter(final TlsProtocol tlsProtocol, final ConnectionTimeouts connectionTimeouts,
+                                     final Consumer<TlsGeneratorException> errorHandler) {
+        protocol = Objects.requireNonNull(tlsProtocol);
+        timeouts = Objects.requireNonNull(connectionTimeouts);
+        handler = Objects.requireNonNull(errorHandler);
+    }
+
+    /**
+     * Completes multiple certificate chains concurrently.
+     *
+     * @param chains certificate chains to complete
+     * @param maxConcurrentCompletions maximum number of chains to complete concurrently
+     *
+     * @return the completed chains, in the order of the input chains
+     */
+    public List<List<X509Certificate>> completeCertificateChains(final Collection<List<X509Certificate>> chains,
+                                                                 final int maxConcurrentCompletions) {
+        chains.forEach(chain -> chain.forEach(certificate -> registerIssuer(CertificateInterner.intern(certificate))));
+        return ConcurrencyUtils.flatMapConcurrently(chains.stream(),
+                chain -> Collections.singletonList(completeCertificateChain(chain)),
+                maxConcurrentCompletions, THREAD_NAME_PREFIX
+        ).collect(Collectors.toList());
+    }
+
+    /**
+     * @param chain certificate chain to complete
+     *
+     * @return the completed chain, or the chain itself if it needs no completion or cannot be completed
+     */
+    public List<X509Certificate> completeCertificateChain(final List<X509Certificate> chain) {
+        if (chain.isEmpty()) {
+            return chain;
+        }
+        final List<X509Certificate> completedChain = new ArrayList<>(chain);
+        try {
+            CertificateInfo last = CertificateInterner.intern(chain.get(chain.size() - 1));
+            for (int added = 0; added < MAX_ADDED_ISSUERS && !last.isCertificateAuthority() && !last.isSelfIssued(); ++added) {
+                final Optional<CertificateInfo> issuer = findIssuer(last);
+                if (!issuer.isPresent() || completedChain.contains(issuer.get().getCertificate())) {
+                    break;
+                }
+                last = issuer.get();
+                completedChain.add(last.getCertificate());
+            }
+        } catch (TlsGeneratorTechnicalException exception) {
+            handler.accept(exception);
+        }
+        if (completedChain.size() == chain.size()) {
+            return chain;
+        }
+        System.out.println(X509Utils.getCertificatesSimpleNames(chain) + " -> " + X509Utils.getCertificatesSimpleNames(completedChain));
+        return Collections.unmodifiableList(completedChain);
+    }
+
+    private Optional<CertificateInfo> findIssuer(final CertificateInfo certificate) {
+        final Optional<CertificateInfo> knownIssuer = certificate.getAuthorityKeyIdentifier()
+                .flatMap(keyId -> findIssuer(certificate, issuersByKeyId.getOrDefault(keyId, Collections.emptyList())));
+        if (knownIssuer.isPresent()) {
+            return knownIssuer;
+        }
+        for (final String urlString : certificate.getCaIssuersUrls()) {
+            final Optional<URL> url = parseIssuerUrl(urlString);
+            if (url.isPresent()) {
+                final Optional<CertificateInfo> issuer = findIssuer(certificate, fetchCertificates(url.get()));
+                if (issuer.isPresent()) {
+                    return issuer;
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<CertificateInfo> findIssuer(final CertificateInfo certificate, final List<CertificateInfo> candidates) {
+        return candidates.stream()
+                .filter(candidate -> candidate.getCertificate().getSubjectX500Principal().equals(certificate.getCertificate().getIssuerX500Principal()))
+                .filter(candidate -> isSignedBy(certificate, candidate))
+                .findFirst();
+    }
+
+    private static boolean isSignedBy(final CertificateInfo certificate, final CertificateInfo issuer) {
+        try {
+            certificate.getCertificate().verify(issuer.getCertificate().getPublicKey());
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private void registerIssuer(final CertificateInfo certificate) {
+        if (certificate.isCertificateAuthority()) {
+            certificate.getSubjectKeyIdentifier().ifPresent(keyId -> issuersByKeyId.compute(keyId, (k, issuers) -> {
+                if (issuers == null) {
+                    return Collections.singletonList(certificate);
+                } else if (issuers.contains(certificate)) {
+                    return issuers;
+                }
+                final List<CertificateInfo> updatedIssuers = new ArrayList<>(issuers);
+                updatedIssuers.add(certificate);
+                return Collections.unmodifiableList(updatedIssuers);
+            }));
+        }
+    }
+
+    private List<CertificateInfo> fetchCertificates(final URL url) {
+        final String key = UrlUtils.getCanonicalKey(url);
+        final CompletableFuture<List<CertificateInfo>> ownFetch = new CompletableFuture<>();
+        final CompletableFuture<List<CertificateInfo>> fetch = certificatesByUrl.putIfAbsent(key, ownFetch);
+        if (fetch != null) {
+            return awaitFetch(fetch);
+        }
+        try {
+            final List<CertificateInfo> certificates = downloadCertificates(url);
+            certificates.forEach(this::registerIssuer);
+            ownFetch.complete(certificates);
+            return certificates;
+        } catch (RuntimeException e) {
+            certificatesByUrl.remove(key, ownFetch);
+            ownFetch.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static List<CertificateInfo> awaitFetch(final CompletableFuture<List<CertificateInfo>> fetch) {
+        try {
+            return fetch.join();
+        } catch (CompletionException e) {
+            final Throwable cause = ConcurrencyUtils.unwrapCompletionException(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    private List<CertificateInfo> downloadCertificates(final URL url) {
+        System.out.println("Fetching issuer: " + url);
+        try {
+            final HttpURLConnection httpUrlConnection = (HttpURLConnection) url.openConnection();
+            if (httpUrlConnection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) httpUrlConnection).setSSLSocketFactory(
+                        SharedTlsContext.getInstance(protocol).getSocketFactory()
+                );
+            }
+            timeouts.applyTo(httpUrlConnection);
+            httpUrlConnection.setDoOutput(false);
+            httpUrlConnection.setDoInput(true);
+
+            final byte[] body;
+            try (InputStream in = httpUrlConnection.getInputStream()) {
+                body = readBody(in);
+            }
+            // Both single DER or PEM encoded certificates and PKCS #7 certificate bundles (.p7c) are accepted
+            final Collection<? extends Certificate> certificates = CertificateFactory.getInstance("X.509")
+                    .generateCertificates(new ByteArrayInputStream(body));
+            return Collections.unmodifiableList(certificates.stream()
+                    .filter(certificate -> certificate instanceof X509Certificate)
+                    .map(certificate -> CertificateInterner.intern((X509Certificate) certificate))
+                    .collect(Collectors.toList()));
+        } catch (IOException e) {
+            final String message = String.format("Failed to fetch issuer from %s: %s", url, e.getMessage());
+            throw new TlsGeneratorTechnicalException(message, e);
+        } catch (CertificateException e) {
+            final String message = String.format("Failed to parse issuer from %s: %s", url, e.getMessage());
+            throw new TlsGeneratorTechnicalException(message, e);
+        }
+    }
+
+    private static byte[] readBody(final InputStream in) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int count; (count = in.read(buffer)) >= 0; ) {
+            if (body.size() + count > MAX_ISSUER_RESPONSE_LENGTH) {
+                throw new IOException("Response exceeds " + MAX_ISSUER_RESPONSE_LENGTH + " bytes");
+            }
+            body.write(buffer, 0, count);
+        }
+        return body.toByteArray();
+    }
+
+    private static Optional<URL> parseIssuerUrl(final String urlString) {
+        try {
+            final URL url = new URL(urlString);
+            return UrlUtils.isHttpUrlProtocol(url.getProtocol()) || UrlUtils.isHttpsUrlProtocol(url.getProtocol())
+                    ? Optional.of(url) : Optional.empty();
+        } catch (MalformedURLException e) {
+            return Optional.empty(); // LDAP and other unsupported URLs are skipped
+        }
+    }
+
+}
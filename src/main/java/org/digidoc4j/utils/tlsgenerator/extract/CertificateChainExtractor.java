@@ -5,6 +5,8 @@ import org.digidoc4j.utils.tlsgenerator.cli.CommandLineInterface;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorInputException;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorParseException;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.x509.CertificateInterner;
+import org.digidoc4j.utils.tlsgenerator.x509.CertificatePath;
 import org.digidoc4j.utils.tlsgenerator.x509.X509Utils;
 
 import java.security.cert.X509Certificate;
@@ -12,29 +14,54 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public final class CertificateChainExtractor {
 
+    private static final String DEPTH_PREFIX = "depth:";
+    private static final String NUMBER_REGEX = "0|([1-9][0-9]*)";
+
     public static UnaryOperator<List<X509Certificate>> createCertificateChainExtractor(final List<String> options) {
+        return createCertificateChainExtractor(options, ExtractionDecisions.inMemory());
+    }
+
+    /**
+     * @param options certificate chain extraction options
+     * @param decisions decisions to replay and record in interactive mode
+     *
+     * @return certificate chain extractor
+     */
+    public static UnaryOperator<List<X509Certificate>> createCertificateChainExtractor(final List<String> options,
+                                                                                       final ExtractionDecisions decisions) {
         final List<Integer> specificIndices = new ArrayList<>();
+        final List<Integer> specificDepths = new ArrayList<>();
         final List<Option> specificOptions = new ArrayList<>();
 
         for (final String option : options) {
             if (Arrays.stream(Option.values()).anyMatch(o -> o.matches(option))) {
                 specificOptions.add(Arrays.stream(Option.values()).filter(o -> o.matches(option)).findFirst().get());
-            } else if (option.matches("0|([1-9][0-9]*)")){
+            } else if (option.matches(NUMBER_REGEX)){
                 specificIndices.add(Integer.parseInt(option));
+            } else if (option.regionMatches(true, 0, DEPTH_PREFIX, 0, DEPTH_PREFIX.length())
+                    && option.substring(DEPTH_PREFIX.length()).matches(NUMBER_REGEX)) {
+                specificDepths.add(Integer.parseInt(option.substring(DEPTH_PREFIX.length())));
             } else {
                 throw new TlsGeneratorInputException("Unrecognized certificate chain extraction option: " + option);
             }
         }
 
-        if (specificOptions.size() > 0 && specificIndices.size() > 0 || specificOptions.size() > 1) {
+        final long kindCount = Stream.of(specificOptions, specificIndices, specificDepths).filter(l -> !l.isEmpty()).count();
+        if (kindCount > 1 || specificOptions.size() > 1) {
             throw new TlsGeneratorInputException("Illegal combination of certificate chain extraction options: " + options);
+        } else if (specificOptions.size() == 1 && specificOptions.get(0) == Option.INTERACTIVE) {
+            return chain -> extractCertificatesInteractively(chain, decisions);
         } else if (specificOptions.size() == 1) {
             return specificOptions.get(0);
+        } else if (!specificDepths.isEmpty()) {
+            return chain -> extractCertificatesByDepth(chain, specificDepths);
         } else {
             return chain -> extractCertificates(chain, specificIndices);
         }
@@ -50,6 +77,35 @@ public final class CertificateChainExtractor {
         }).map(chain::get).collect(Collectors.toList());
     }
 
+    /**
+     * Queries the console only for chains whose shape has not been decided before, see {@link ExtractionDecisions}.
+     */
+    private static List<X509Certificate> extractCertificatesInteractively(final List<X509Certificate> chain,
+                                                                          final ExtractionDecisions decisions) {
+        if (chain.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Optional<List<Integer>> decidedIndices = decisions.get(chain);
+        if (decidedIndices.isPresent()) {
+            return extractCertificates(chain, decidedIndices.get());
+        }
+        final List<Integer> indices = queryAndParseCertificatesIndices(chain);
+        final List<X509Certificate> certificates = extractCertificates(chain, indices);
+        decisions.put(chain, indices);
+        return certificates;
+    }
+
+    private static List<X509Certificate> extractCertificatesByDepth(final List<X509Certificate> chain, final List<Integer> depths) {
+        final List<X509Certificate> path = CertificatePath.build(chain);
+        return depths.stream().peek(depth -> {
+            if (depth >= path.size()) {
+                throw new TlsGeneratorTechnicalException(String.format(
+                        "Failed to extract certificate at depth %d from chain %s: Certification path %s is too short",
+                        depth, X509Utils.getCertificatesSimpleNames(chain), X509Utils.getCertificatesSimpleNames(path)));
+            }
+        }).map(path::get).collect(Collectors.toList());
+    }
+
     private enum Option implements UnaryOperator<List<X509Certificate>> {
 
         ALL {
@@ -81,11 +137,29 @@ public final class CertificateChainExtractor {
             }
         },
 
+        ROOT {
+            @Override
+            public List<X509Certificate> apply(final List<X509Certificate> chain) {
+                final List<X509Certificate> path = CertificatePath.build(chain);
+                final X509Certificate top = path.isEmpty() ? null : path.get(path.size() - 1);
+                return (top != null && CertificateInterner.intern(top).isSelfIssued())
+                        ? Collections.singletonList(top) : Collections.emptyList();
+            }
+        },
+
+        ISSUING_CA {
+            @Override
+            public List<X509Certificate> apply(final List<X509Certificate> chain) {
+                final List<X509Certificate> path = CertificatePath.build(chain);
+                return (path.size() > 1) ? path.subList(1, 2) : Collections.emptyList();
+            }
+        },
+
         INTERACTIVE {
             @Override
             public List<X509Certificate> apply(final List<X509Certificate> chain) {
-                return chain.isEmpty() ? Collections.emptyList() : CertificateChainExtractor
-                        .extractCertificates(chain, queryAndParseCertificatesIndices(chain));
+                // Without the shared decisions, every chain would be queried again
+                throw new IllegalStateException("Interactive extraction is bound to its decisions by createCertificateChainExtractor");
             }
         },
 
@@ -0,0 +1,139 @@
+package org.digidoc4j.utils.tlsgenerator.extract;
+
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.x509.X509Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Memoised interactive extraction decisions: which certificates (by index) to extract from chains of a specific shape.
+ * <p>
+ * The shape of a chain consists of the fingerprints of all its certificates except the first one (the server
+ * certificate), so that a decision made for one chain is reused for every chain issued by the same CAs.
+ * Decisions can optionally be persisted to a properties file, which is rewritten atomically after each new decision,
+ * so that later runs replay them without querying the console.
+ */
+public final class ExtractionDecisions {
+
+    private static final String CHAIN_KEY_PREFIX = "chain.";
+    private static final String FINGERPRINT_SEPARATOR = ",";
+    private static final String INDEX_SEPARATOR = " ";
+
+    private final Path path;
+    private final Map<String, List<Integer>> indicesByShape = new TreeMap<>();
+
+    private ExtractionDecisions(final Path path) {
+        this.path = path;
+    }
+
+    /**
+     * @return empty decisions that are only kept for the duration of the run
+     */
+    public static ExtractionDecisions inMemory() {
+        return new ExtractionDecisions(null);
+    }
+
+    /**
+     * Loads decisions from the specified file. If the file does not exist, the decisions are initially empty and the
+     * file is created once the first decision has been made.
+     *
+     * @param path path of the decisions file
+     *
+     * @return decisions loaded from the file
+     */
+    public static ExtractionDecisions load(final Path path) {
+        final ExtractionDecisions decisions = new ExtractionDecisions(path);
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        } catch (NoSuchFileException e) {
+            return decisions;
+        } catch (IOException | IllegalArgumentException e) {
+            throw new TlsGeneratorTechnicalException("Failed to load extraction decisions: " + path + ": " + e.getMessage(), e);
+        }
+
+        for (final String key : properties.stringPropertyNames()) {
+            if (key.startsWith(CHAIN_KEY_PREFIX)) {
+                try {
+                    decisions.indicesByShape.put(key.substring(CHAIN_KEY_PREFIX.length()), Collections.unmodifiableList(
+                            Arrays.stream(properties.getProperty(key).trim().split("\\s+"))
+                                    .filter(index -> !index.isEmpty())
+                                    .map(Integer::valueOf)
+                                    .collect(Collectors.toList())
+                    ));
+                } catch (NumberFormatException e) {
+                    throw new TlsGeneratorTechnicalException("Failed to load extraction decisions: " + path + ": Invalid indices for " + key, e);
+                }
+            }
+        }
+        return decisions;
+    }
+
+    /**
+     * @param chain certificate chain
+     *
+     * @return the indices of the certificates to extract from chains of the same shape, if decided before
+     */
+    public synchronized Optional<List<Integer>> get(final List<X509Certificate> chain) {
+        return Optional.ofNullable(indicesByShape.get(getShape(chain)));
+    }
+
+    /**
+     * Records the decision for chains of the same shape as the specified chain, and saves the decisions if they are
+     * backed by a file.
+     *
+     * @param chain certificate chain
+     * @param indices indices of the certificates to extract
+     */
+    public synchronized void put(final List<X509Certificate> chain, final List<Integer> indices) {
+        indicesByShape.put(getShape(chain), Collections.unmodifiableList(new ArrayList<>(indices)));
+        if (path != null) {
+            save();
+        }
+    }
+
+    private void save() {
+        final Properties properties = new Properties();
+        indicesByShape.forEach((shape, indices) -> properties.setProperty(CHAIN_KEY_PREFIX + shape,
+                indices.stream().map(String::valueOf).collect(Collectors.joining(INDEX_SEPARATOR))));
+
+        try {
+            final Path directory = path.toAbsolutePath().getParent();
+            final Path temporaryFile = Files.createTempFile(directory, null, null);
+            try {
+                try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+                    properties.store(out, "TLS truststore generator extraction decisions");
+                }
+                Files.move(temporaryFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        } catch (IOException e) {
+            throw new TlsGeneratorTechnicalException("Failed to save extraction decisions: " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static String getShape(final List<X509Certificate> chain) {
+        return chain.stream()
+                .skip(1)
+                .map(X509Utils::getCertificateFingerprint)
+                .collect(Collectors.joining(FINGERPRINT_SEPARATOR));
+    }
+
+}
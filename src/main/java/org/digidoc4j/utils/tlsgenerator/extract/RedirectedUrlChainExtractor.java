@@ -1,86 +1,277 @@
 package org.digidoc4j.utils.tlsgenerator.extract;
 
+import org.digidoc4j.utils.tlsgenerator.concurrent.ConcurrencyUtils;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
-import org.digidoc4j.utils.tlsgenerator.tls.NoOpTrustManager;
+import org.digidoc4j.utils.tlsgenerator.tls.ConnectionTimeouts;
+import org.digidoc4j.utils.tlsgenerator.tls.SharedTlsContext;
 import org.digidoc4j.utils.tlsgenerator.tls.TlsProtocol;
-import org.digidoc4j.utils.tlsgenerator.tls.TlsUtils;
 import org.digidoc4j.utils.tlsgenerator.url.UrlUtils;
 
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
+/**
+ * Resolves the chains of HTTP 3XX redirects starting from URLs.
+ * <p>
+ * Redirects are followed iteratively up to a maximum number of hops. Each hop is probed with a {@code HEAD} request,
+ * falling back to {@code GET} if the server does not support {@code HEAD} (responds with 405 or 501).
+ * Connections are released into the keep-alive cache of {@link HttpURLConnection} rather than closed whenever their
+ * responses can be consumed cheaply, so that hops to the same origin reuse the same TCP connection and TLS session.
+ * <p>
+ * The certificate chains that HTTPS servers present while being probed can be passed to a consumer, so that they need
+ * not be fetched again. Probes therefore connect through the capture socket factory of {@link SharedTlsContext}:
+ * their handshakes never resume a session, which might have been established with another server.
+ * <p>
+ * Resolved hops (URL to next URL, or to no next URL) are memoised for a while and shared between concurrent
+ * resolutions: a hop that another resolution has already resolved, or is resolving at the moment, is not probed again.
+ * Failed hops are not memoised.
+ */
 public final class RedirectedUrlChainExtractor {
 
-    private static final String REQUEST_METHOD = "GET";
+    public static final int DEFAULT_MAX_REDIRECTS = 10;
+
+    private static final String THREAD_NAME_PREFIX = "redirect-resolver-";
+    private static final String PROBE_REQUEST_METHOD = "HEAD";
+    private static final String FALLBACK_REQUEST_METHOD = "GET";
     private static final String REDIRECT_TARGET_HEADER = "Location";
+    private static final int MAX_DRAINED_RESPONSE_LENGTH = 64 * 1024;
+    // In milliseconds, short enough for a redirect that changes during a long run to be picked up again
+    private static final long RESOLVED_HOP_TIME_TO_LIVE = 5 * 60 * 1000L;
 
     private final TlsProtocol protocol;
+    private final ConnectionTimeouts timeouts;
     private final Consumer<TlsGeneratorException> handler;
+    private final int maxRedirects;
+    private final BiConsumer<URL, List<X509Certificate>> chainConsumer;
+    private final Map<String, ResolvedHop> resolvedHops = new ConcurrentHashMap<>();
+    private final AtomicLong nextExpiredHopsRemoval = new AtomicLong();
 
-    public RedirectedUrlChainExtractor(final TlsProtocol tlsProtocol, final Consumer<TlsGeneratorException> errorHandler) {
+    /**
+     * @param tlsProtocol TLS protocol for secure connections
+     * @param connectionTimeouts connection timeouts
+     * @param errorHandler handler of redirect resolution errors
+     * @param maxRedirects maximum number of redirects to follow from a single URL
+     * @param certificateChainConsumer consumer of the certificate chains captured from HTTPS URLs while probing them
+     */
+    public RedirectedUrlChainExtractor(final TlsProtocol tlsProtocol, final ConnectionTimeouts connectionTimeouts,
+                                       final Consumer<TlsGeneratorException> errorHandler, final int maxRedirects,
+                                       final BiConsumer<URL, List<X509Certificate>> certificateChainConsumer) {
+        if (maxRedirects < 0) {
+            throw new IllegalArgumentException("Max redirects must not be negative");
+        }
         protocol = Objects.requireNonNull(tlsProtocol);
+        timeouts = Objects.requireNonNull(connectionTimeouts);
         handler = Objects.requireNonNull(errorHandler);
+        this.maxRedirects = maxRedirects;
+        chainConsumer = Objects.requireNonNull(certificateChainConsumer);
+    }
+
+    /**
+     * Resolves the redirection URL chains of multiple URLs concurrently, see
+     * {@link ConcurrencyUtils#flatMapConcurrently(Stream, Function, int, String)}.
+     *
+     * @param urls URLs to resolve the redirection URL chains of
+     * @param maxConcurrentResolutions maximum number of chains to resolve concurrently
+     *
+     * @return the concatenated redirection URL chains, in the order of the input URLs
+     */
+    public Stream<URL> extractRedirectionUrlChains(final Stream<URL> urls, final int maxConcurrentResolutions) {
+        return ConcurrencyUtils.flatMapConcurrently(urls, this::extractRedirectionUrlChain, maxConcurrentResolutions, THREAD_NAME_PREFIX);
     }
 
     public List<URL> extractRedirectionUrlChain(final URL url) {
         final List<URL> accumulatedUrls = new ArrayList<>();
         try {
-            followRedirectsRecursively(url, accumulatedUrls);
+            followRedirects(url, accumulatedUrls);
         } catch (TlsGeneratorTechnicalException exception) {
             handler.accept(exception);
         }
         return accumulatedUrls;
     }
 
-    private void followRedirectsRecursively(final URL currentUrl, final List<URL> urlAccumulator) {
-        final URL nextUrl = followRedirectAndGetNextUrl(currentUrl, urlAccumulator);
-        if (nextUrl == null || UrlUtils.contains(urlAccumulator, nextUrl)) {
-            return; // Break the recursion if there is no next URL or this URL has already been followed
+    private void followRedirects(final URL url, final List<URL> urlAccumulator) {
+        URL currentUrl = url;
+        for (int redirects = 0; ; ++redirects) {
+            final URL nextUrl = followRedirectAndGetNextUrl(currentUrl, urlAccumulator);
+            if (nextUrl == null || UrlUtils.contains(urlAccumulator, nextUrl)) {
+                return; // Stop if there is no next URL or this URL has already been followed
+            } else if (redirects >= maxRedirects) {
+                throw new TlsGeneratorTechnicalException(String.format("Too many redirects from %s: more than %d", url, maxRedirects));
+            }
+            currentUrl = nextUrl;
         }
-        followRedirectsRecursively(nextUrl, urlAccumulator);
     }
 
     private URL followRedirectAndGetNextUrl(final URL currentUrl, final List<URL> urlAccumulator) {
+        final String key = UrlUtils.getCanonicalKey(currentUrl);
+        final long now = System.currentTimeMillis();
+        removeExpiredHops(now);
+        final CompletableFuture<Optional<URL>> ownResolution = new CompletableFuture<>();
+        final ResolvedHop hop = resolvedHops.compute(key, (k, existingHop) -> (existingHop != null && existingHop.expiresAt > now)
+                ? existingHop
+                : new ResolvedHop(ownResolution, now + RESOLVED_HOP_TIME_TO_LIVE));
+
+        if (hop.nextUrl != ownResolution) {
+            final URL nextUrl = awaitResolution(hop.nextUrl).orElse(null);
+            urlAccumulator.add(currentUrl);
+            return nextUrl;
+        }
         try {
-            final HttpURLConnection httpURLConnection = (HttpURLConnection) currentUrl.openConnection();
+            final URL nextUrl = probeAndGetNextUrl(currentUrl, urlAccumulator);
+            ownResolution.complete(Optional.ofNullable(nextUrl));
+            return nextUrl;
+        } catch (RuntimeException e) {
+            resolvedHops.remove(key, hop);
+            ownResolution.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private void removeExpiredHops(final long now) {
+        // Sweep at most once per time-to-live, so that the hops of URLs that are not looked up again do not pile up
+        final long removalTime = nextExpiredHopsRemoval.get();
+        if (now >= removalTime && nextExpiredHopsRemoval.compareAndSet(removalTime, now + RESOLVED_HOP_TIME_TO_LIVE)) {
+            resolvedHops.values().removeIf(hop -> hop.expiresAt <= now);
+        }
+    }
+
+    private static Optional<URL> awaitResolution(final CompletableFuture<Optional<URL>> resolution) {
+        try {
+            return resolution.join();
+        } catch (CompletionException e) {
+            final Throwable cause = ConcurrencyUtils.unwrapCompletionException(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    private URL probeAndGetNextUrl(final URL currentUrl, final List<URL> urlAccumulator) {
+        HttpURLConnection httpURLConnection = openConnection(currentUrl, PROBE_REQUEST_METHOD);
+        if (isRequestMethodUnsupported(httpURLConnection)) {
+            release(httpURLConnection);
+            httpURLConnection = openConnection(currentUrl, FALLBACK_REQUEST_METHOD);
+        }
+
+        try {
+            // Only after the connection was opened successfully,
+            //  it is safe to add the URL for subsequent certificate fetching
+            urlAccumulator.add(currentUrl);
+
+            return getNextUrl(httpURLConnection);
+        } finally {
+            release(httpURLConnection);
+        }
+    }
+
+    private HttpURLConnection openConnection(final URL url, final String requestMethod) {
+        try {
+            final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
 
             try {
-                httpURLConnection.setRequestMethod(REQUEST_METHOD);
+                httpURLConnection.setRequestMethod(requestMethod);
                 httpURLConnection.setInstanceFollowRedirects(false);
+                timeouts.applyTo(httpURLConnection);
                 if (httpURLConnection instanceof HttpsURLConnection) {
                     configureForTls((HttpsURLConnection) httpURLConnection);
                 }
                 httpURLConnection.connect();
-
-                // Only after the connection was opened successfully,
-                //  it is safe to add the URL for subsequent certificate fetching
-                urlAccumulator.add(currentUrl);
-
-                return getNextUrl(httpURLConnection);
+                if (httpURLConnection instanceof HttpsURLConnection) {
+                    // The server certificates are only available until the response has been read
+                    captureCertificateChain(url, (HttpsURLConnection) httpURLConnection);
+                }
+                return httpURLConnection;
             } catch (ProtocolException e) {
+                httpURLConnection.disconnect();
                 throw new TlsGeneratorTechnicalException("Protocol error: " + e.getMessage(), e);
-            } finally {
+            } catch (IOException e) {
                 httpURLConnection.disconnect();
+                throw e;
             }
         } catch (IOException e) {
-            final String message = String.format("Failed to open connection to %s: %s", currentUrl, e.getMessage());
+            final String message = String.format("Failed to open connection to %s: %s", url, e.getMessage());
             throw new TlsGeneratorTechnicalException(message, e);
         }
     }
 
+    private void captureCertificateChain(final URL url, final HttpsURLConnection httpsURLConnection) {
+        try {
+            final List<X509Certificate> chain = new ArrayList<>();
+            for (final Certificate certificate : httpsURLConnection.getServerCertificates()) {
+                if (!(certificate instanceof X509Certificate)) {
+                    return;
+                }
+                chain.add((X509Certificate) certificate);
+            }
+            chainConsumer.accept(url, chain);
+        } catch (SSLPeerUnverifiedException | IllegalStateException e) {
+            // No chain to capture, it will be fetched separately
+        }
+    }
+
+    private static boolean isRequestMethodUnsupported(final HttpURLConnection httpURLConnection) {
+        try {
+            final int responseCode = httpURLConnection.getResponseCode();
+            return responseCode == HttpURLConnection.HTTP_BAD_METHOD || responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+        } catch (IOException e) {
+            return false; // Let the response be handled as usual
+        }
+    }
+
+    /**
+     * Returns the connection to the keep-alive cache if its response has no body or a short one (as redirect responses
+     * usually do) that can be read to the end; otherwise closes the connection.
+     */
+    private static void release(final HttpURLConnection httpURLConnection) {
+        try {
+            final int responseCode = httpURLConnection.getResponseCode();
+            final long contentLength = httpURLConnection.getContentLengthLong();
+            if (PROBE_REQUEST_METHOD.equals(httpURLConnection.getRequestMethod())
+                    || (responseCode / 100 == 3 && contentLength >= 0 && contentLength <= MAX_DRAINED_RESPONSE_LENGTH)) {
+                try (InputStream in = (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST)
+                        ? httpURLConnection.getErrorStream() : httpURLConnection.getInputStream()) {
+                    if (in != null) {
+                        final byte[] buffer = new byte[8192];
+                        while (in.read(buffer) >= 0) {
+                            // Read the rest of the response, so that the connection can be reused
+                        }
+                    }
+                }
+                return;
+            }
+        } catch (IOException e) {
+            // Fall through to closing the connection
+        }
+        httpURLConnection.disconnect();
+    }
+
     private void configureForTls(final HttpsURLConnection httpsURLConnection) {
-        httpsURLConnection.setSSLSocketFactory(TlsUtils.createSocketFactory(protocol, new NoOpTrustManager()));
+        httpsURLConnection.setSSLSocketFactory(SharedTlsContext.getInstance(protocol).getCaptureSocketFactory());
     }
 
     private static URL getNextUrl(final HttpURLConnection httpURLConnection) {
@@ -134,4 +325,16 @@ public final class RedirectedUrlChainExtractor {
         return UrlUtils.isHttpUrlProtocol(protocol) || UrlUtils.isHttpsUrlProtocol(protocol);
     }
 
+    private static final class ResolvedHop {
+
+        private final CompletableFuture<Optional<URL>> nextUrl;
+        private final long expiresAt;
+
+        ResolvedHop(final CompletableFuture<Optional<URL>> nextUrl, final long expiresAt) {
+            this.nextUrl = nextUrl;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
 }
@@ -0,0 +1,163 @@
+package org.digidoc4j.utils.tlsgenerator.lotl;
+
+import org.digidoc4j.utils.tlsgenerator.cache.DocumentCache;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.tls.ConnectionTimeouts;
+import org.digidoc4j.utils.tlsgenerator.tls.SharedTlsContext;
+import org.digidoc4j.utils.tlsgenerator.tls.TlsProtocol;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens LOTL and TSL documents for streaming.
+ * <p>
+ * Local files are memory-mapped and read directly from the mapping, without copying them through an intermediate
+ * file buffer.
+ * <p>
+ * Documents are requested gzip-compressed. If a document cache is available, a document cached earlier is
+ * revalidated with a conditional request and read from the cache if the server reports it as not modified.
+ */
+final class DocumentLoader {
+
+    private static final String GZIP_ENCODING = "gzip";
+
+    private final TlsProtocol protocol;
+    private final ConnectionTimeouts timeouts;
+    private final Optional<DocumentCache> cache;
+
+    DocumentLoader(final TlsProtocol tlsProtocol, final ConnectionTimeouts connectionTimeouts, final DocumentCache documentCache) {
+        protocol = Objects.requireNonNull(tlsProtocol);
+        timeouts = Objects.requireNonNull(connectionTimeouts);
+        cache = Optional.ofNullable(documentCache);
+    }
+
+    InputStream openStream(final URL url) {
+        return openStream(url, true);
+    }
+
+    /**
+     * @param url document URL
+     * @param revalidate whether to revalidate a cached copy of the document, rather than download it unconditionally;
+     *                   a freshly downloaded document is cached in either case
+     */
+    private InputStream openStream(final URL url, final boolean revalidate) {
+        final Optional<DocumentCache.CachedDocument> cachedDocument = revalidate ? cache.flatMap(c -> c.get(url)) : Optional.empty();
+        try {
+            final HttpURLConnection httpUrlConnection = (HttpURLConnection) url.openConnection();
+            if (httpUrlConnection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) httpUrlConnection).setSSLSocketFactory(
+                        SharedTlsContext.getInstance(protocol).getSocketFactory()
+                );
+            }
+
+            httpUrlConnection.setInstanceFollowRedirects(false);
+            timeouts.applyTo(httpUrlConnection);
+            httpUrlConnection.setDoOutput(false);
+            httpUrlConnection.setDoInput(true);
+            httpUrlConnection.setRequestProperty("Accept-Encoding", GZIP_ENCODING);
+            cachedDocument.ifPresent(document -> {
+                document.getETag().ifPresent(etag -> httpUrlConnection.setRequestProperty("If-None-Match", etag));
+                document.getLastModified().ifPresent(lastModified -> httpUrlConnection.setRequestProperty("If-Modified-Since", lastModified));
+            });
+            httpUrlConnection.connect();
+
+            if (cachedDocument.isPresent() && httpUrlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                release(httpUrlConnection);
+                // If the cached copy vanished after it was revalidated, download the document again
+                return cachedDocument.get().openBody().orElseGet(() -> openStream(url, false));
+            }
+            // Only complete documents are parsed and cached, a cached redirect page would be replayed after revalidation
+            final int responseCode = httpUrlConnection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                httpUrlConnection.disconnect();
+                throw new TlsGeneratorTechnicalException(String.format("Failed to load %s: Unexpected HTTP %d response", url, responseCode));
+            }
+
+            InputStream body = httpUrlConnection.getInputStream();
+            if (GZIP_ENCODING.equalsIgnoreCase(httpUrlConnection.getContentEncoding())) {
+                body = new GZIPInputStream(body);
+            }
+            if (cache.isPresent()) {
+                body = cache.get().put(url, httpUrlConnection.getHeaderField("ETag"), httpUrlConnection.getHeaderField("Last-Modified"), body);
+            }
+            return body;
+        } catch (IOException e) {
+            final String message = String.format("Failed to open connection to %s: %s", url, e.getMessage());
+            throw new TlsGeneratorTechnicalException(message, e);
+        }
+    }
+
+    static InputStream openFile(final Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + size + " bytes");
+            }
+            // The mapping stays valid after the channel has been closed
+            return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    private static void release(final HttpURLConnection httpUrlConnection) {
+        // A not-modified response has no body: reading it to the end releases the connection into the keep-alive cache
+        try (InputStream in = httpUrlConnection.getInputStream()) {
+            final byte[] buffer = new byte[8192];
+            while (in.read(buffer) >= 0) {
+                // Read the rest of the response, so that the connection can be reused
+            }
+        } catch (IOException e) {
+            httpUrlConnection.disconnect();
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            } else if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.digidoc4j.utils.tlsgenerator.lotl;
+
+import org.digidoc4j.utils.tlsgenerator.cache.DocumentCache;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorInputException;
+import org.digidoc4j.utils.tlsgenerator.tls.ConnectionTimeouts;
+import org.digidoc4j.utils.tlsgenerator.tls.TlsProtocol;
+import org.digidoc4j.utils.tlsgenerator.url.AbstractUrlsInputSource;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Source of the URLs of the TSLs pointed to by LOTLs stored in local files, and optionally the service URLs harvested
+ * from these TSLs. Unlike with {@link LotlUrlsInputSource}, the LOTLs themselves have no URLs to fetch from.
+ */
+public final class LotlFilesInputSource extends AbstractUrlsInputSource {
+
+    /**
+     * @param lotlFileStrings LOTL file paths
+     * @param tlsProtocol TLS protocol for downloading TSLs
+     * @param connectionTimeouts timeouts for downloading TSLs
+     * @param maxRedirects maximum number of redirects to follow from a TSL URL, 0 for not following redirects
+     * @param tslPointerFilter filter of the TSL pointers of the LOTLs
+     * @param maxConcurrentTsls maximum number of TSLs to harvest service URLs from concurrently, 0 for no harvesting
+     * @param errorHandler handler of TSL harvesting errors
+     * @param documentCache cache for revalidating previously downloaded TSLs, or {@code null} for no caching
+     */
+    public LotlFilesInputSource(final List<String> lotlFileStrings, final TlsProtocol tlsProtocol,
+                                final ConnectionTimeouts connectionTimeouts, final int maxRedirects,
+                                final Predicate<TslPointer> tslPointerFilter, final int maxConcurrentTsls,
+                                final Consumer<TlsGeneratorException> errorHandler, final DocumentCache documentCache) {
+        super(createLotlUrlsSupplier(
+                // Check the LOTL files up front, so that invalid input is reported before anything is fetched
+                lotlFileStrings.stream().distinct().map(LotlFilesInputSource::parsePath).collect(Collectors.toList()),
+                new LotlParser(tlsProtocol, connectionTimeouts, documentCache, tslPointerFilter),
+                LotlUrlsInputSource.getTslUrlsExpander(new TslParser(tlsProtocol, connectionTimeouts, documentCache),
+                        LotlUrlsInputSource.getRedirectionHandler(tlsProtocol, connectionTimeouts, maxRedirects), maxConcurrentTsls, errorHandler)
+        ));
+    }
+
+    private static Supplier<Stream<URL>> createLotlUrlsSupplier(final List<Path> lotlFiles, final LotlParser lotlParser,
+                                                                final Function<Stream<TslPointer>, Stream<URL>> tslUrlsExpander) {
+        return () -> lotlFiles.stream().flatMap(lotlFile -> tslUrlsExpander.apply(
+                LotlUrlsInputSource.streamTslPointers(consumer -> lotlParser.parseLotl(lotlFile, consumer))
+        ));
+    }
+
+    private static Path parsePath(final String pathString) {
+        final Path path;
+        try {
+            path = Paths.get(pathString);
+        } catch (InvalidPathException e) {
+            throw new TlsGeneratorInputException("Failed to parse LOTL file path: Invalid input: " + pathString, e);
+        }
+        if (!Files.isRegularFile(path) || !Files.isReadable(path)) {
+            throw new TlsGeneratorInputException("Failed to read LOTL file: " + pathString);
+        }
+        return path;
+    }
+
+}
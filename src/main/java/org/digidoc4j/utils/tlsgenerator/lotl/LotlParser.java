@@ -1,136 +1,196 @@
 package org.digidoc4j.utils.tlsgenerator.lotl;
 
 import org.digidoc4j.utils.tlsgenerator.Resources;
+import org.digidoc4j.utils.tlsgenerator.cache.DocumentCache;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorParseException;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
-import org.digidoc4j.utils.tlsgenerator.tls.NoOpTrustManager;
+import org.digidoc4j.utils.tlsgenerator.tls.ConnectionTimeouts;
 import org.digidoc4j.utils.tlsgenerator.tls.TlsProtocol;
-import org.digidoc4j.utils.tlsgenerator.tls.TlsUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.net.ssl.HttpsURLConnection;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+/**
+ * Streaming LOTL parser.
+ * <p>
+ * The LOTL is parsed with a StAX reader while it is being downloaded, and TSL pointers are emitted as soon as their
+ * elements have been read. Only the state of the TSL pointer currently being read is kept in memory, so the memory
+ * use does not depend on the size of the document.
+ * <p>
+ * Elements are matched by their qualified names (prefix included, if any), at any depth below their parents:
+ * a TSL pointer is any {@value #TSL_POINTER} element inside a {@value #TSL_POINTERS} element inside a
+ * {@value #INFORMATION_ELEMENT} element. TSL pointers rejected by the TSL pointer filter are dropped as soon as they
+ * have been read, so they never reach the consumers.
+ */
 public final class LotlParser {
 
     private static final String LOTL_ROOT_ELEMENT = "TrustServiceStatusList";
     private static final String INFORMATION_ELEMENT = "SchemeInformation";
     private static final String TSL_POINTERS = "PointersToOtherTSL";
     private static final String TSL_POINTER = "OtherTSLPointer";
+    private static final String ADDITIONAL_INFORMATION = "AdditionalInformation";
+    private static final String OTHER_INFORMATION = "OtherInformation";
+    private static final String SCHEME_TERRITORY = "SchemeTerritory";
+    private static final String MIME_TYPE = "MimeType";
+    private static final String TSL_LOCATION = "TSLLocation";
+
+    private final DocumentLoader documentLoader;
+    private final Predicate<TslPointer> tslPointerFilter;
 
-    private final TlsProtocol protocol;
+    public LotlParser(final TlsProtocol tlsProtocol, final ConnectionTimeouts connectionTimeouts) {
+        this(tlsProtocol, connectionTimeouts, null, TslPointerFilter.ACCEPT_ALL);
+    }
 
-    public LotlParser(final TlsProtocol tlsProtocol) {
-        protocol = Objects.requireNonNull(tlsProtocol);
+    /**
+     * @param tlsProtocol TLS protocol for downloading LOTLs
+     * @param connectionTimeouts timeouts for downloading LOTLs
+     * @param documentCache cache for revalidating previously downloaded LOTLs, or {@code null} for no caching
+     * @param tslPointerFilter filter of TSL pointers; the TSL pointers it rejects are never passed to consumers
+     */
+    public LotlParser(final TlsProtocol tlsProtocol, final ConnectionTimeouts connectionTimeouts, final DocumentCache documentCache,
+                      final Predicate<TslPointer> tslPointerFilter) {
+        this.documentLoader = new DocumentLoader(tlsProtocol, connectionTimeouts, documentCache);
+        this.tslPointerFilter = Objects.requireNonNull(tslPointerFilter);
     }
 
     public List<TslPointer> parseLotl(final URL lotlUrl) {
-        final Element lotlRootElement = loadLotlDocumentRoot(lotlUrl);
-        switch (lotlRootElement.getTagName()) {
-            case LOTL_ROOT_ELEMENT:
-                return parseTslPointers(lotlRootElement);
-            default:
-                throw new TlsGeneratorParseException("Failed to parse LOTL: " + lotlUrl + ": No recognized root element found");
-        }
+        final List<TslPointer> tslPointers = new ArrayList<>();
+        parseLotl(lotlUrl, tslPointers::add);
+        return tslPointers;
     }
 
-    private Element loadLotlDocumentRoot(final URL lotlUrl) {
-        try (InputStream lotlInputStream = openLotlStream(lotlUrl)) {
-            final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            final DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            final Document document = documentBuilder.parse(lotlInputStream);
-            final Element rootElement = document.getDocumentElement();
-            if (rootElement == null) {
-                throw new TlsGeneratorParseException("No root element found in LOTL: " + lotlUrl);
-            } else {
-                return rootElement;
-            }
-        } catch (ParserConfigurationException e) {
-            throw new TlsGeneratorTechnicalException("Failed to initialize LOTL parser: " + e.getMessage(), e);
-        } catch (SAXException e) {
-            throw new TlsGeneratorParseException("Failed to parse LOTL: " + lotlUrl + ": " + e.getMessage(), e);
+    /**
+     * Parses the LOTL at the specified URL, passing each TSL pointer to the consumer as soon as it has been read.
+     * If the LOTL turns out to be malformed, the TSL pointers read before the error have already been consumed.
+     *
+     * @param lotlUrl URL of the LOTL
+     * @param tslPointerConsumer consumer of TSL pointers, in document order
+     */
+    public void parseLotl(final URL lotlUrl, final Consumer<TslPointer> tslPointerConsumer) {
+        try (InputStream lotlInputStream = documentLoader.openStream(lotlUrl)) {
+            parseLotl(lotlInputStream, lotlUrl.toString(), getFilteringConsumer(tslPointerConsumer));
         } catch (IOException e) {
             throw new TlsGeneratorTechnicalException("Failed to load LOTL: " + lotlUrl + ": " + e.getMessage(), e);
         }
     }
 
-    private InputStream openLotlStream(final URL lotlUrl) {
-        try {
-            final HttpURLConnection httpUrlConnection = (HttpURLConnection) lotlUrl.openConnection();
-            if (httpUrlConnection instanceof HttpsURLConnection) {
-                ((HttpsURLConnection) httpUrlConnection).setSSLSocketFactory(
-                        TlsUtils.createSocketFactory(protocol, new NoOpTrustManager())
-                );
-            }
-
-            httpUrlConnection.setInstanceFollowRedirects(false);
-            httpUrlConnection.setDoOutput(false);
-            httpUrlConnection.setDoInput(true);
-            httpUrlConnection.connect();
-
-            return httpUrlConnection.getInputStream();
+    /**
+     * Parses the LOTL in the specified local file, passing each TSL pointer to the consumer as soon as it has been read.
+     *
+     * @param lotlFile path of the LOTL file
+     * @param tslPointerConsumer consumer of TSL pointers, in document order
+     */
+    public void parseLotl(final Path lotlFile, final Consumer<TslPointer> tslPointerConsumer) {
+        try (InputStream lotlInputStream = DocumentLoader.openFile(lotlFile)) {
+            parseLotl(lotlInputStream, lotlFile.toString(), getFilteringConsumer(tslPointerConsumer));
         } catch (IOException e) {
-            final String message = String.format("Failed to open connection to %s: %s", lotlUrl, e.getMessage());
-            throw new TlsGeneratorTechnicalException(message, e);
+            throw new TlsGeneratorTechnicalException("Failed to load LOTL: " + lotlFile + ": " + e.getMessage(), e);
         }
     }
 
-    private static List<TslPointer> parseTslPointers(final Element lotlRootElement) {
-        return findElements(lotlRootElement, Arrays.asList(INFORMATION_ELEMENT, TSL_POINTERS, TSL_POINTER))
-                .map(LotlParser::parseTslPointer).collect(Collectors.toList());
+    private Consumer<TslPointer> getFilteringConsumer(final Consumer<TslPointer> tslPointerConsumer) {
+        return tslPointer -> {
+            if (tslPointerFilter.test(tslPointer)) {
+                tslPointerConsumer.accept(tslPointer);
+            }
+        };
     }
 
-    private static Stream<Element> findElements(final Element root, final List<String> path) {
-        final NodeList children = root.getElementsByTagName(path.get(0));
-        final Stream<Element> elements = IntStream
-                .range(0, children.getLength())
-                .mapToObj(children::item)
-                .map(child -> (Element) child);
-
-        if (path.size() > 1) {
-            return elements.flatMap(e -> findElements(e, path.subList(1, path.size())));
-        } else {
-            return elements;
+    static void parseLotl(final InputStream lotlInputStream, final String location, final Consumer<TslPointer> tslPointerConsumer) {
+        XMLStreamReader reader = null;
+        try {
+            reader = XmlUtils.createXmlInputFactory().createXMLStreamReader(lotlInputStream);
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT) {
+                throw new TlsGeneratorParseException("No root element found in LOTL: " + location);
+            } else if (!LOTL_ROOT_ELEMENT.equals(getQualifiedName(reader))) {
+                throw new TlsGeneratorParseException("Failed to parse LOTL: " + location + ": No recognized root element found");
+            }
+            parseTslPointers(reader, tslPointerConsumer);
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException) {
+                throw new TlsGeneratorTechnicalException("Failed to load LOTL: " + location + ": " + e.getNestedException().getMessage(), e);
+            }
+            throw new TlsGeneratorParseException("Failed to parse LOTL: " + location + ": " + XmlUtils.getParseErrorMessage(e), e);
+        } finally {
+            XmlUtils.closeQuietly(reader);
         }
     }
 
-    private static TslPointer parseTslPointer(final Element tslPointerElement) {
-        if (!TSL_POINTER.equals(tslPointerElement.getTagName())) {
-            throw new IllegalArgumentException();
-        }
+    private static void parseTslPointers(final XMLStreamReader reader, final Consumer<TslPointer> tslPointerConsumer) throws XMLStreamException {
+        // Number of open SchemeInformation elements, and number of (SchemeInformation, PointersToOtherTSL) ancestor pairs
+        int openInformationElements = 0;
+        int openPointersPaths = 0;
+        final Deque<Integer> pointersPathsPerElement = new ArrayDeque<>();
+        final Deque<String> openElements = new ArrayDeque<>();
+        openElements.push(getQualifiedName(reader)); // The root element
 
-        final String territory = findElements(tslPointerElement,
-                Arrays.asList("AdditionalInformation", "OtherInformation", "SchemeTerritory"))
-                .map(Node::getTextContent)
-                .filter(Objects::nonNull)
-                .findFirst()
-                .orElse(Resources.EMPTY_STRING);
-
-        final URL url = findElements(tslPointerElement, Arrays.asList("TSLLocation"))
-                .map(Node::getTextContent)
-                .filter(Objects::nonNull)
-                .map(LotlParser::parseTslLocation)
-                .findFirst()
-                .orElseThrow(() -> new IllegalStateException());
-
-        return new TslPointer(territory, url);
+        // TSL pointers nested in other TSL pointers are emitted after their outermost TSL pointer, in document order
+        final List<TslPointerReader> openTslPointers = new ArrayList<>();
+        final List<TslPointerReader> pendingTslPointers = new ArrayList<>();
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    final String name = getQualifiedName(reader);
+                    openElements.push(name);
+                    if (TSL_POINTER.equals(name) && openPointersPaths > 0) {
+                        final TslPointerReader tslPointer = new TslPointerReader(openElements.size(), openPointersPaths);
+                        openTslPointers.add(tslPointer);
+                        pendingTslPointers.add(tslPointer);
+                    } else {
+                        openTslPointers.forEach(tslPointer -> tslPointer.startElement(name, openElements.size()));
+                    }
+                    if (INFORMATION_ELEMENT.equals(name)) {
+                        ++openInformationElements;
+                    } else if (TSL_POINTERS.equals(name)) {
+                        pointersPathsPerElement.push(openInformationElements);
+                        openPointersPaths += openInformationElements;
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (!openTslPointers.isEmpty()) {
+                        final String text = reader.getText();
+                        openTslPointers.forEach(tslPointer -> tslPointer.characters(text));
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    final int depth = openElements.size();
+                    final String closedName = openElements.pop();
+                    if (INFORMATION_ELEMENT.equals(closedName)) {
+                        --openInformationElements;
+                    } else if (TSL_POINTERS.equals(closedName)) {
+                        openPointersPaths -= pointersPathsPerElement.pop();
+                    }
+                    openTslPointers.removeIf(tslPointer -> tslPointer.endElement(closedName, depth));
+                    if (openTslPointers.isEmpty() && !pendingTslPointers.isEmpty()) {
+                        for (final TslPointerReader tslPointer : pendingTslPointers) {
+                            final TslPointer parsedTslPointer = tslPointer.toTslPointer();
+                            for (int i = 0; i < tslPointer.multiplicity; ++i) {
+                                tslPointerConsumer.accept(parsedTslPointer);
+                            }
+                        }
+                        pendingTslPointers.clear();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
     }
 
     private static URL parseTslLocation(final String tslLocation) {
@@ -141,4 +201,106 @@ public final class LotlParser {
         }
     }
 
+    private static String getLocalName(final String qualifiedName) {
+        return qualifiedName.substring(qualifiedName.indexOf(':') + 1);
+    }
+
+    private static String getQualifiedName(final XMLStreamReader reader) {
+        final String prefix = reader.getPrefix();
+        return (prefix == null || prefix.isEmpty()) ? reader.getLocalName() : prefix + ':' + reader.getLocalName();
+    }
+
+    /**
+     * Collects the territory, the MIME type and the location of a single TSL pointer while its element is being read.
+     * The territory and the MIME type are the texts of the first {@value #SCHEME_TERRITORY} and {@value #MIME_TYPE}
+     * elements inside an {@value #OTHER_INFORMATION} element inside an {@value #ADDITIONAL_INFORMATION} element, and
+     * the location is the text of the first {@value #TSL_LOCATION} element. The MIME type element is matched by its
+     * local name, as it belongs to a namespace of its own.
+     */
+    private static final class TslPointerReader {
+
+        private final int depth;
+        private final int multiplicity;
+
+        private int openAdditionalInformationElements;
+        private int openTerritoryPaths;
+        private final Deque<Boolean> otherInformationInPath = new ArrayDeque<>();
+
+        private StringBuilder territory;
+        private int territoryDepth;
+        private StringBuilder mimeType;
+        private int mimeTypeDepth;
+        private StringBuilder location;
+        private int locationDepth;
+
+        TslPointerReader(final int depth, final int multiplicity) {
+            this.depth = depth;
+            this.multiplicity = multiplicity;
+        }
+
+        void startElement(final String name, final int elementDepth) {
+            if (ADDITIONAL_INFORMATION.equals(name)) {
+                ++openAdditionalInformationElements;
+            } else if (OTHER_INFORMATION.equals(name)) {
+                final boolean inPath = openAdditionalInformationElements > 0;
+                otherInformationInPath.push(inPath);
+                openTerritoryPaths += inPath ? 1 : 0;
+            } else if (SCHEME_TERRITORY.equals(name) && territory == null && openTerritoryPaths > 0) {
+                territory = new StringBuilder();
+                territoryDepth = elementDepth;
+            } else if (MIME_TYPE.equals(getLocalName(name)) && mimeType == null && openTerritoryPaths > 0) {
+                mimeType = new StringBuilder();
+                mimeTypeDepth = elementDepth;
+            } else if (TSL_LOCATION.equals(name) && location == null) {
+                location = new StringBuilder();
+                locationDepth = elementDepth;
+            }
+        }
+
+        void characters(final String text) {
+            if (territoryDepth > 0) {
+                territory.append(text);
+            }
+            if (mimeTypeDepth > 0) {
+                mimeType.append(text);
+            }
+            if (locationDepth > 0) {
+                location.append(text);
+            }
+        }
+
+        /**
+         * @return {@code true} if the closed element was the element of this TSL pointer, {@code false} otherwise
+         */
+        boolean endElement(final String name, final int elementDepth) {
+            if (elementDepth == depth) {
+                return true;
+            } else if (elementDepth == territoryDepth) {
+                territoryDepth = 0;
+            } else if (elementDepth == mimeTypeDepth) {
+                mimeTypeDepth = 0;
+            } else if (elementDepth == locationDepth) {
+                locationDepth = 0;
+            }
+            if (ADDITIONAL_INFORMATION.equals(name)) {
+                --openAdditionalInformationElements;
+            } else if (OTHER_INFORMATION.equals(name)) {
+                openTerritoryPaths -= otherInformationInPath.pop() ? 1 : 0;
+            }
+            return false;
+        }
+
+        TslPointer toTslPointer() {
+            if (location == null) {
+                throw new TlsGeneratorParseException("No TSL location found in TSL pointer");
+            }
+            return new TslPointer(
+                    (territory != null) ? territory.toString() : Resources.EMPTY_STRING,
+                    (mimeType != null) ? mimeType.toString().trim() : Resources.EMPTY_STRING,
+                    parseTslLocation(location.toString())
+            );
+        }
+
+    }
+
 }
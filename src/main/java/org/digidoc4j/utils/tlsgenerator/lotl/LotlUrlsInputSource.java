@@ -1,37 +1,130 @@
 package org.digidoc4j.utils.tlsgenerator.lotl;
 
+import org.digidoc4j.utils.tlsgenerator.cache.DocumentCache;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorInputException;
 import org.digidoc4j.utils.tlsgenerator.extract.RedirectedUrlChainExtractor;
+import org.digidoc4j.utils.tlsgenerator.tls.ConnectionTimeouts;
 import org.digidoc4j.utils.tlsgenerator.tls.TlsProtocol;
 import org.digidoc4j.utils.tlsgenerator.url.AbstractUrlsInputSource;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public final class LotlUrlsInputSource extends AbstractUrlsInputSource {
 
-    public LotlUrlsInputSource(final List<String> lotlUrlStrings, final TlsProtocol tlsProtocol, final boolean followRedirects) {
-        super(extractLotlUrls(
-                lotlUrlStrings.stream().distinct().map(LotlUrlsInputSource::parseURL),
-                tlsProtocol, followRedirects
+    /**
+     * Creates a source of the URLs of LOTLs, the URLs of the TSLs they point to, and optionally the service URLs
+     * harvested from these TSLs.
+     *
+     * @param lotlUrlStrings LOTL URLs
+     * @param tlsProtocol TLS protocol for downloading the LOTLs and TSLs
+     * @param connectionTimeouts timeouts for downloading the LOTLs and TSLs
+     * @param maxRedirects maximum number of redirects to follow from a LOTL URL, 0 for not following redirects
+     * @param tslPointerFilter filter of the TSL pointers of the LOTLs
+     * @param maxConcurrentTsls maximum number of TSLs to harvest service URLs from concurrently, 0 for no harvesting
+     * @param errorHandler handler of TSL harvesting errors
+     * @param documentCache cache for revalidating previously downloaded LOTLs and TSLs, or {@code null} for no caching
+     */
+    public LotlUrlsInputSource(final List<String> lotlUrlStrings, final TlsProtocol tlsProtocol,
+                               final ConnectionTimeouts connectionTimeouts, final int maxRedirects,
+                               final Predicate<TslPointer> tslPointerFilter, final int maxConcurrentTsls,
+                               final Consumer<TlsGeneratorException> errorHandler, final DocumentCache documentCache) {
+        super(createLotlUrlsSupplier(
+                // Parse the LOTL URLs up front, so that invalid input is reported before anything is fetched
+                lotlUrlStrings.stream().distinct().map(LotlUrlsInputSource::parseURL).collect(Collectors.toList()),
+                new LotlParser(tlsProtocol, connectionTimeouts, documentCache, tslPointerFilter),
+                getRedirectionHandler(tlsProtocol, connectionTimeouts, maxRedirects),
+                new TslParser(tlsProtocol, connectionTimeouts, documentCache), maxConcurrentTsls, errorHandler
         ));
     }
 
-    private static Stream<URL> extractLotlUrls(final Stream<URL> lotlUrls, final TlsProtocol tlsProtocol, final boolean followRedirects) {
-        final LotlParser lotlParser = new LotlParser(tlsProtocol);
+    private static Supplier<Stream<URL>> createLotlUrlsSupplier(final List<URL> lotlUrls, final LotlParser lotlParser,
+                                                                final UnaryOperator<URL> redirectionHandler,
+                                                                final TslParser tslParser, final int maxConcurrentTsls,
+                                                                final Consumer<TlsGeneratorException> errorHandler) {
+        // TSLs are downloaded from the end of their redirection chains too, like LOTLs
+        final Function<Stream<TslPointer>, Stream<URL>> tslUrlsExpander = getTslUrlsExpander(tslParser, redirectionHandler, maxConcurrentTsls, errorHandler);
+        return () -> extractLotlUrls(lotlUrls.stream(), lotlParser, redirectionHandler, tslUrlsExpander);
+    }
+
+    private static Stream<URL> extractLotlUrls(final Stream<URL> lotlUrls, final LotlParser lotlParser,
+                                               final UnaryOperator<URL> redirectionHandler,
+                                               final Function<Stream<TslPointer>, Stream<URL>> tslUrlsExpander) {
         return lotlUrls
-                .map(getRedirectionHandler(tlsProtocol, followRedirects))
+                .map(redirectionHandler)
                 .flatMap(lotlUrl -> Stream.concat(
                         Stream.of(lotlUrl),
-                        lotlParser.parseLotl(lotlUrl).stream().map(TslPointer::getUrl)
+                        tslUrlsExpander.apply(streamTslPointers(consumer -> lotlParser.parseLotl(lotlUrl, consumer)))
                 ));
     }
 
+    static Function<Stream<TslPointer>, Stream<URL>> getTslUrlsExpander(final TslParser tslParser, final UnaryOperator<URL> redirectionHandler,
+                                                                        final int maxConcurrentTsls,
+                                                                        final Consumer<TlsGeneratorException> errorHandler) {
+        if (maxConcurrentTsls > 0) {
+            final TslServiceUrlsHarvester harvester = new TslServiceUrlsHarvester(
+                    (tslUrl, serviceUrlConsumer) -> tslParser.parseServiceUrls(redirectionHandler.apply(tslUrl), serviceUrlConsumer),
+                    maxConcurrentTsls, errorHandler
+            );
+            return harvester::withServiceUrls;
+        } else {
+            return tslPointers -> tslPointers.map(TslPointer::getUrl);
+        }
+    }
+
+    /**
+     * Returns a lazy stream of the TSL pointers of a LOTL, parsed by the specified parse function.
+     * When the stream is consumed by its terminal operation (e.g. {@link Stream#forEach(Consumer)}), the TSL pointers
+     * are passed downstream as soon as they are parsed, while the rest of the LOTL is still being downloaded.
+     * When the stream is iterated element by element, the whole LOTL is parsed on the first access.
+     */
+    static Stream<TslPointer> streamTslPointers(final Consumer<Consumer<TslPointer>> lotlParseFunction) {
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<TslPointer>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+
+            private Iterator<TslPointer> parsedTslPointers;
+
+            @Override
+            public boolean tryAdvance(final Consumer<? super TslPointer> action) {
+                if (parsedTslPointers == null) {
+                    final List<TslPointer> tslPointers = new ArrayList<>();
+                    lotlParseFunction.accept(tslPointers::add);
+                    parsedTslPointers = tslPointers.iterator();
+                }
+                if (parsedTslPointers.hasNext()) {
+                    action.accept(parsedTslPointers.next());
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void forEachRemaining(final Consumer<? super TslPointer> action) {
+                if (parsedTslPointers == null) {
+                    parsedTslPointers = Collections.emptyIterator();
+                    lotlParseFunction.accept(action::accept);
+                } else {
+                    super.forEachRemaining(action);
+                }
+            }
+
+        }, false);
+    }
+
     private static URL parseURL(final String urlString) {
         try {
             return new URL(urlString);
@@ -41,11 +134,12 @@ public final class LotlUrlsInputSource extends AbstractUrlsInputSource {
         }
     }
 
-    private static UnaryOperator<URL> getRedirectionHandler(final TlsProtocol tlsProtocol, final boolean followRedirects) {
-        if (followRedirects) {
-            // Re-throw the exception if the entire redirection chain for LOTL fails to be resolved
+    static UnaryOperator<URL> getRedirectionHandler(final TlsProtocol tlsProtocol, final ConnectionTimeouts connectionTimeouts,
+                                                    final int maxRedirects) {
+        if (maxRedirects > 0) {
+            // Re-throw the exception if the entire redirection chain for a LOTL or TSL fails to be resolved
             final Consumer<TlsGeneratorException> errorHandler = exception -> { throw exception; };
-            final RedirectedUrlChainExtractor extractor = new RedirectedUrlChainExtractor(tlsProtocol, errorHandler);
+            final RedirectedUrlChainExtractor extractor = new RedirectedUrlChainExtractor(tlsProtocol, connectionTimeouts, errorHandler, maxRedirects, (url, chain) -> {});
             return url -> {
                 final List<URL> redirectionChain = extractor.extractRedirectionUrlChain(url);
                 return redirectionChain.isEmpty() ? url : redirectionChain.get(redirectionChain.size() - 1);
@@ -0,0 +1,91 @@
+package org.digidoc4j.utils.tlsgenerator.lotl;
+
+import org.digidoc4j.utils.tlsgenerator.cache.DocumentCache;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorParseException;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.tls.ConnectionTimeouts;
+import org.digidoc4j.utils.tlsgenerator.tls.TlsProtocol;
+import org.digidoc4j.utils.tlsgenerator.url.UrlUtils;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Streaming parser of national TSLs, harvesting the URLs of trust services.
+ * <p>
+ * The harvested URLs are the service supply points of the trust services (OCSP responders, CRL distribution points,
+ * timestamping services, etc.) and all the informational URIs listed in the TSL, as far as they are HTTP(S) URLs.
+ * Elements are matched by their local names, regardless of their namespace prefixes.
+ */
+public final class TslParser {
+
+    private static final String TSL_ROOT_ELEMENT = "TrustServiceStatusList";
+    private static final String SERVICE_SUPPLY_POINT = "ServiceSupplyPoint";
+    private static final String URI = "URI";
+
+    private final DocumentLoader documentLoader;
+
+    /**
+     * @param tlsProtocol TLS protocol for downloading TSLs
+     * @param connectionTimeouts timeouts for downloading TSLs
+     * @param documentCache cache for revalidating previously downloaded TSLs, or {@code null} for no caching
+     */
+    public TslParser(final TlsProtocol tlsProtocol, final ConnectionTimeouts connectionTimeouts, final DocumentCache documentCache) {
+        documentLoader = new DocumentLoader(tlsProtocol, connectionTimeouts, documentCache);
+    }
+
+    /**
+     * Parses the TSL at the specified URL, passing each service URL to the consumer as soon as it has been read.
+     *
+     * @param tslUrl URL of the TSL
+     * @param serviceUrlConsumer consumer of service URLs, in document order
+     */
+    public void parseServiceUrls(final URL tslUrl, final Consumer<URL> serviceUrlConsumer) {
+        try (InputStream tslInputStream = documentLoader.openStream(tslUrl)) {
+            parseServiceUrls(tslInputStream, tslUrl.toString(), serviceUrlConsumer);
+        } catch (IOException e) {
+            throw new TlsGeneratorTechnicalException("Failed to load TSL: " + tslUrl + ": " + e.getMessage(), e);
+        }
+    }
+
+    static void parseServiceUrls(final InputStream tslInputStream, final String location, final Consumer<URL> serviceUrlConsumer) {
+        XMLStreamReader reader = null;
+        try {
+            reader = XmlUtils.createXmlInputFactory().createXMLStreamReader(tslInputStream);
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT || !TSL_ROOT_ELEMENT.equals(reader.getLocalName())) {
+                throw new TlsGeneratorParseException("Failed to parse TSL: " + location + ": No recognized root element found");
+            }
+
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT
+                        && (SERVICE_SUPPLY_POINT.equals(reader.getLocalName()) || URI.equals(reader.getLocalName()))) {
+                    parseServiceUrl(reader.getElementText()).ifPresent(serviceUrlConsumer);
+                }
+            }
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException) {
+                throw new TlsGeneratorTechnicalException("Failed to load TSL: " + location + ": " + e.getNestedException().getMessage(), e);
+            }
+            throw new TlsGeneratorParseException("Failed to parse TSL: " + location + ": " + XmlUtils.getParseErrorMessage(e), e);
+        } finally {
+            XmlUtils.closeQuietly(reader);
+        }
+    }
+
+    private static Optional<URL> parseServiceUrl(final String serviceUrl) {
+        try {
+            final URL url = new URL(serviceUrl.trim());
+            return (UrlUtils.isHttpUrl(url) || UrlUtils.isHttpsUrl(url)) ? Optional.of(url) : Optional.empty();
+        } catch (MalformedURLException e) {
+            return Optional.empty(); // Not every URI is a URL (e.g. URNs), these are irrelevant here
+        }
+    }
+
+}
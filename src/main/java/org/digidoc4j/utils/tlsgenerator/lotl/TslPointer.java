@@ -1,14 +1,22 @@
 package org.digidoc4j.utils.tlsgenerator.lotl;
 
+import org.digidoc4j.utils.tlsgenerator.Resources;
+
 import java.net.URL;
 
 public final class TslPointer {
 
     private final String territory;
+    private final String mimeType;
     private final URL url;
 
     public TslPointer(final String territory, final URL url) {
+        this(territory, Resources.EMPTY_STRING, url);
+    }
+
+    public TslPointer(final String territory, final String mimeType, final URL url) {
         this.territory = territory;
+        this.mimeType = mimeType;
         this.url = url;
     }
 
@@ -16,6 +24,10 @@ public final class TslPointer {
         return territory;
     }
 
+    public String getMimeType() {
+        return mimeType;
+    }
+
     public URL getUrl() {
         return url;
     }
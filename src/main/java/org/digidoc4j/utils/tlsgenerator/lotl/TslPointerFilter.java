@@ -0,0 +1,64 @@
+package org.digidoc4j.utils.tlsgenerator.lotl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Filter of TSL pointers by their territories, MIME types and URLs.
+ * <p>
+ * Territories and MIME types are compared case-insensitively. An empty set of included territories or MIME types
+ * means that no filtering is done by that attribute; otherwise TSL pointers that lack the attribute are filtered out.
+ * The URL pattern is searched for anywhere in the URL of a TSL pointer.
+ */
+public final class TslPointerFilter implements Predicate<TslPointer> {
+
+    public static final TslPointerFilter ACCEPT_ALL = new TslPointerFilter(
+            Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), null);
+
+    private final Set<String> includedTerritories;
+    private final Set<String> excludedTerritories;
+    private final Set<String> mimeTypes;
+    private final Pattern urlPattern;
+
+    /**
+     * @param includedTerritories territories to include, or an empty collection to include all territories
+     * @param excludedTerritories territories to exclude
+     * @param mimeTypes MIME types to include, or an empty collection to include all MIME types
+     * @param urlPattern pattern of URLs to include, or {@code null} to include all URLs
+     */
+    public TslPointerFilter(final Collection<String> includedTerritories, final Collection<String> excludedTerritories,
+                            final Collection<String> mimeTypes, final Pattern urlPattern) {
+        this.includedTerritories = normalize(includedTerritories);
+        this.excludedTerritories = normalize(excludedTerritories);
+        this.mimeTypes = normalize(mimeTypes);
+        this.urlPattern = urlPattern;
+    }
+
+    @Override
+    public boolean test(final TslPointer tslPointer) {
+        final String territory = normalize(tslPointer.getTerritory());
+        if (!includedTerritories.isEmpty() && !includedTerritories.contains(territory)) {
+            return false;
+        } else if (excludedTerritories.contains(territory)) {
+            return false;
+        } else if (!mimeTypes.isEmpty() && !mimeTypes.contains(normalize(tslPointer.getMimeType()))) {
+            return false;
+        }
+        return urlPattern == null || urlPattern.matcher(tslPointer.getUrl().toExternalForm()).find();
+    }
+
+    private static Set<String> normalize(final Collection<String> values) {
+        return Objects.requireNonNull(values).stream().map(TslPointerFilter::normalize).collect(Collectors.toSet());
+    }
+
+    private static String normalize(final String value) {
+        return (value != null) ? value.trim().toUpperCase(Locale.ROOT) : "";
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.digidoc4j.utils.tlsgenerator.lotl;
+
+import org.digidoc4j.utils.tlsgenerator.concurrent.ConcurrencyUtils;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.url.UrlUtils;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Expands a stream of TSL pointers with the service URLs harvested from the TSLs they point to.
+ * <p>
+ * The URL of each TSL pointer is passed downstream immediately, and its TSL is then downloaded and parsed in the
+ * background. Only TSLs in XML format are harvested: LOTLs also point to human readable versions of the TSLs
+ * (e.g. {@code application/pdf}), which cannot be parsed. Pointers without a MIME type are assumed to be XML.
+ * Up to a fixed number of TSLs are processed concurrently; the service URLs of a TSL are passed downstream once the
+ * TSL has been parsed, in the order of the TSL URLs. The memory use is bounded by the service URLs of the TSLs
+ * being processed concurrently.
+ */
+final class TslServiceUrlsHarvester {
+
+    private static final String THREAD_NAME_PREFIX = "tsl-harvester-";
+    // E.g. application/vnd.etsi.tsl+xml, application/xml or text/xml, optionally followed by parameters
+    private static final Pattern XML_MIME_TYPE = Pattern.compile("[^/]+/([^;]+\\+)?xml\\s*(;.*)?");
+
+    private final BiConsumer<URL, Consumer<URL>> serviceUrlsParser;
+    private final int maxConcurrentTsls;
+    private final Consumer<TlsGeneratorException> errorHandler;
+
+    /**
+     * @param serviceUrlsParser parser of TSLs, passing the service URLs of the TSL at the specified URL to the consumer,
+     *                          see {@link TslParser#parseServiceUrls(URL, Consumer)}
+     * @param maxConcurrentTsls maximum number of TSLs to harvest concurrently
+     * @param errorHandler handler of TSL harvesting errors
+     */
+    TslServiceUrlsHarvester(final BiConsumer<URL, Consumer<URL>> serviceUrlsParser, final int maxConcurrentTsls,
+                            final Consumer<TlsGeneratorException> errorHandler) {
+        if (maxConcurrentTsls < 1) {
+            throw new IllegalArgumentException("Max concurrent TSLs must be positive");
+        }
+        this.serviceUrlsParser = Objects.requireNonNull(serviceUrlsParser);
+        this.maxConcurrentTsls = maxConcurrentTsls;
+        this.errorHandler = Objects.requireNonNull(errorHandler);
+    }
+
+    Stream<URL> withServiceUrls(final Stream<TslPointer> tslPointers) {
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<URL>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+
+            private Iterator<URL> bufferedUrls;
+
+            @Override
+            public boolean tryAdvance(final Consumer<? super URL> action) {
+                if (bufferedUrls == null) {
+                    final List<URL> urls = new ArrayList<>();
+                    harvest(tslPointers, urls::add);
+                    bufferedUrls = urls.iterator();
+                }
+                if (bufferedUrls.hasNext()) {
+                    action.accept(bufferedUrls.next());
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void forEachRemaining(final Consumer<? super URL> action) {
+                if (bufferedUrls == null) {
+                    bufferedUrls = Collections.emptyIterator();
+                    harvest(tslPointers, action);
+                } else {
+                    super.forEachRemaining(action);
+                }
+            }
+
+        }, false).onClose(tslPointers::close);
+    }
+
+    private void harvest(final Stream<TslPointer> tslPointers, final Consumer<? super URL> action) {
+        final ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentTsls, ConcurrencyUtils.createDaemonThreadFactory(THREAD_NAME_PREFIX));
+        final Deque<Future<List<URL>>> pendingTsls = new ArrayDeque<>();
+        try {
+            tslPointers.forEach(tslPointer -> {
+                action.accept(tslPointer.getUrl());
+                if (!isXmlTsl(tslPointer)) {
+                    return;
+                }
+                pendingTsls.add(executor.submit(() -> parseServiceUrls(tslPointer.getUrl())));
+                while (pendingTsls.size() >= maxConcurrentTsls || (!pendingTsls.isEmpty() && pendingTsls.peek().isDone())) {
+                    awaitServiceUrls(pendingTsls.poll()).forEach(action);
+                }
+            });
+            while (!pendingTsls.isEmpty()) {
+                awaitServiceUrls(pendingTsls.poll()).forEach(action);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<URL> parseServiceUrls(final URL tslUrl) {
+        // TSLs list the same service URLs over and over again, so only the distinct ones are kept in memory
+        final Set<String> seenServiceUrls = new HashSet<>();
+        final List<URL> serviceUrls = new ArrayList<>();
+        serviceUrlsParser.accept(tslUrl, serviceUrl -> {
+            if (seenServiceUrls.add(UrlUtils.getCanonicalKey(serviceUrl))) {
+                serviceUrls.add(serviceUrl);
+            }
+        });
+        return serviceUrls;
+    }
+
+    private static boolean isXmlTsl(final TslPointer tslPointer) {
+        final String mimeType = (tslPointer.getMimeType() != null) ? tslPointer.getMimeType().trim() : "";
+        return mimeType.isEmpty() || XML_MIME_TYPE.matcher(mimeType.toLowerCase(Locale.ROOT)).matches();
+    }
+
+    private List<URL> awaitServiceUrls(final Future<List<URL>> pendingTsl) {
+        try {
+            return pendingTsl.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TlsGeneratorTechnicalException("Interrupted while harvesting TSL service URLs", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TlsGeneratorException) {
+                errorHandler.accept((TlsGeneratorException) e.getCause());
+            } else {
+                errorHandler.accept(new TlsGeneratorTechnicalException("Failed to harvest TSL service URLs: " + e.getCause(), e.getCause()));
+            }
+            return Collections.emptyList();
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.digidoc4j.utils.tlsgenerator.lotl;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+final class XmlUtils {
+
+    private static final String PARSE_ERROR_MESSAGE_PREFIX = "Message: ";
+
+    static XMLInputFactory createXmlInputFactory() {
+        final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+        return xmlInputFactory;
+    }
+
+    static String getParseErrorMessage(final XMLStreamException exception) {
+        // The message of XMLStreamException is prefixed with the location of the error on a separate line
+        final String message = String.valueOf(exception.getMessage());
+        final int index = message.indexOf(PARSE_ERROR_MESSAGE_PREFIX);
+        return (index >= 0) ? message.substring(index + PARSE_ERROR_MESSAGE_PREFIX.length()) : message;
+    }
+
+    static void closeQuietly(final XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // Nothing to do if closing the reader fails
+            }
+        }
+    }
+
+    private XmlUtils() {}
+
+}
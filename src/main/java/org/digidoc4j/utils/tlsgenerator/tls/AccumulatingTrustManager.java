@@ -1,6 +1,7 @@
 package org.digidoc4j.utils.tlsgenerator.tls;
 
 import javax.net.ssl.X509TrustManager;
+import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -10,17 +11,39 @@ import java.util.stream.Collectors;
 
 public final class AccumulatingTrustManager implements X509TrustManager {
 
+    static final String ABORT_AFTER_CAPTURE_MESSAGE = "Handshake aborted after capturing server certificate chain";
+
+    private final boolean abortAfterServerCertificateChain;
     private final List<X509Certificate[]> accumulatedClientCertificateChains = new ArrayList<>();
     private final List<X509Certificate[]> accumulatedServerCertificateChains = new ArrayList<>();
 
+    public AccumulatingTrustManager() {
+        this(false);
+    }
+
+    /**
+     * @param abortAfterServerCertificateChain whether to abort the handshake by rejecting the server certificate chain
+     *                                         immediately after it has been accumulated
+     */
+    public AccumulatingTrustManager(final boolean abortAfterServerCertificateChain) {
+        this.abortAfterServerCertificateChain = abortAfterServerCertificateChain;
+    }
+
     @Override
     public void checkClientTrusted(final X509Certificate[] chain, String authType) {
         accumulatedClientCertificateChains.add(chain);
     }
 
     @Override
-    public void checkServerTrusted(final X509Certificate[] chain, String authType) {
+    public void checkServerTrusted(final X509Certificate[] chain, String authType) throws CertificateException {
         accumulatedServerCertificateChains.add(chain);
+        if (abortAfterServerCertificateChain) {
+            throw new CertificateException(ABORT_AFTER_CAPTURE_MESSAGE);
+        }
+    }
+
+    public boolean isAbortingAfterServerCertificateChain() {
+        return abortAfterServerCertificateChain;
     }
 
     @Override
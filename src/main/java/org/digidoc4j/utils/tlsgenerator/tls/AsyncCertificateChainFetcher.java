@@ -0,0 +1,32 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@FunctionalInterface
+public interface AsyncCertificateChainFetcher extends AutoCloseable {
+
+    /**
+     * Fetches the certificate chain served at the specified URL, connecting to the specified address of its host.
+     *
+     * @param url URL to fetch the certificate chain from; its host is used as the server name
+     * @param address address to connect to, or {@code null} to connect to whichever address the host resolves to
+     *
+     * @return future of the fetched certificate chain
+     */
+    CompletableFuture<List<X509Certificate>> fetchCertificateChainAsync(URL url, InetAddress address);
+
+    default CompletableFuture<List<X509Certificate>> fetchCertificateChainAsync(final URL url) {
+        return fetchCertificateChainAsync(url, null);
+    }
+
+    /**
+     * Releases any resources held by this fetcher. Fetches that have not completed by then may fail.
+     */
+    @Override
+    default void close() {}
+
+}
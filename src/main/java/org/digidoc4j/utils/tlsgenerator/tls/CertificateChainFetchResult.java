@@ -0,0 +1,47 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public final class CertificateChainFetchResult {
+
+    private final URL url;
+    private final CompletableFuture<List<List<X509Certificate>>> certificateChains;
+
+    public CertificateChainFetchResult(final URL url, final CompletableFuture<List<List<X509Certificate>>> certificateChains) {
+        this.url = Objects.requireNonNull(url);
+        this.certificateChains = Objects.requireNonNull(certificateChains);
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * Waits for the fetch to complete and returns the fetched certificate chains.
+     * Unless all the addresses of the host were probed, exactly one certificate chain is returned.
+     *
+     * @return the distinct certificate chains fetched from {@link #getUrl()}
+     *
+     * @throws TlsGeneratorException if fetching the certificate chains failed
+     */
+    public List<List<X509Certificate>> getCertificateChains() {
+        try {
+            return certificateChains.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TlsGeneratorException) {
+                throw (TlsGeneratorException) e.getCause();
+            }
+            final String message = String.format("Failed to load TLS certificate chain from %s: %s", url, e.getCause());
+            throw new TlsGeneratorTechnicalException(message, e.getCause());
+        }
+    }
+
+}
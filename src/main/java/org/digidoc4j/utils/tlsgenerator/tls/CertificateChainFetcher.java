@@ -2,9 +2,11 @@ package org.digidoc4j.utils.tlsgenerator.tls;
 
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
 
+import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.net.URL;
 import java.security.cert.X509Certificate;
 import java.util.List;
@@ -12,29 +14,62 @@ import java.util.Objects;
 
 public final class CertificateChainFetcher {
 
-    private final TlsProtocol protocol;
+    private final SharedTlsContext tlsContext;
+    private final ConnectionTimeouts timeouts;
+    private final boolean abortAfterCapture;
 
-    public CertificateChainFetcher(final TlsProtocol tlsProtocol) {
-        protocol = Objects.requireNonNull(tlsProtocol);
+    public CertificateChainFetcher(final TlsProtocol tlsProtocol, final ConnectionTimeouts connectionTimeouts, final boolean abortAfterCapture) {
+        this.tlsContext = SharedTlsContext.getInstance(Objects.requireNonNull(tlsProtocol));
+        this.timeouts = Objects.requireNonNull(connectionTimeouts);
+        this.abortAfterCapture = abortAfterCapture;
     }
 
     public List<X509Certificate> fetchCertificateChainFrom(final URL url) {
-        final AccumulatingTrustManager trustManager = new AccumulatingTrustManager();
+        return fetchCertificateChainFrom(url, null);
+    }
 
-        try {
-            final SSLSocketFactory sslSocketFactory = TlsUtils.createSocketFactory(protocol, trustManager);
-            final int port = (url.getPort() > 0) ? url.getPort() : 443;
+    public List<X509Certificate> fetchCertificateChainFrom(final URL url, final InetAddress address) {
+        final AccumulatingTrustManager trustManager = new AccumulatingTrustManager(abortAfterCapture);
+        final FetchTarget target = FetchTarget.of(url).withAddress(address);
+        final String location = getLocation(url, target);
 
-            try (SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(url.getHost(), port)) {
-                sslSocket.startHandshake();
+        try {
+            try (Socket socket = new Socket()) {
+                socket.connect(target.getSocketAddress(), timeouts.getConnectTimeout());
+                socket.setSoTimeout(timeouts.getHandshakeTimeout());
+                try (SSLSocket sslSocket = tlsContext.createCaptureSocket(socket, url.getHost(), target.getPort())) {
+                    tlsContext.startCapture(sslSocket, trustManager);
+                    try {
+                        sslSocket.startHandshake();
+                    } finally {
+                        tlsContext.stopCapture(sslSocket);
+                    }
+                }
+            }
+        } catch (SSLException e) {
+            if (!isAbortedAfterCapture(trustManager)) {
+                final String message = String.format("Failed to load TLS certificate chain from %s: %s", location, e.getMessage());
+                throw new TlsGeneratorTechnicalException(message, e);
             }
         } catch (TlsGeneratorTechnicalException | IOException e) {
-            final String message = String.format("Failed to load TLS certificate chain from %s: %s", url, e.getMessage());
+            final String message = String.format("Failed to load TLS certificate chain from %s: %s", location, e.getMessage());
             throw new TlsGeneratorTechnicalException(message, e);
         }
 
+        return getCertificateChain(trustManager, location);
+    }
+
+    static String getLocation(final URL url, final FetchTarget target) {
+        return target.getAddress().map(address -> url + " (" + address.getHostAddress() + ')').orElse(url.toString());
+    }
+
+    static boolean isAbortedAfterCapture(final AccumulatingTrustManager trustManager) {
+        return trustManager.isAbortingAfterServerCertificateChain() && !trustManager.getAccumulatedServerCertificateChains().isEmpty();
+    }
+
+    static List<X509Certificate> getCertificateChain(final AccumulatingTrustManager trustManager, final String location) {
         final List<List<X509Certificate>> certificateChains = trustManager.getAccumulatedServerCertificateChains();
-        assertFetchedCertificateChains(certificateChains, url.toString());
+        assertFetchedCertificateChains(certificateChains, location);
         return certificateChains.get(0);
     }
 
@@ -0,0 +1,327 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import org.digidoc4j.utils.tlsgenerator.concurrent.ConcurrencyUtils;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Fetches certificate chains from multiple URLs concurrently.
+ * <p>
+ * The number of concurrent fetches and the number of simultaneous connections to any single host are capped
+ * separately. Fetches that would exceed either of the caps are queued per host, so they never occupy a worker thread
+ * while waiting and never block fetches from other hosts.
+ * The results are always returned in the order of the input URLs, regardless of the order the fetches complete in.
+ * <p>
+ * Fetches are single-flight per {@link FetchTarget}: all the URLs that resolve to the same target share the result
+ * of a single handshake, whether that handshake is still in flight or has already completed.
+ * <p>
+ * Optionally, all the addresses that the host of a URL resolves to can be probed in parallel, each with the host as
+ * the SNI server name, in which case the result of the URL is the union of the distinct certificate chains served by
+ * these addresses. Addresses that fail are skipped, as long as at least one of the addresses succeeds, and their
+ * failures are reported to the warning handler.
+ */
+public final class ConcurrentCertificateChainFetcher {
+
+    private static final String THREAD_NAME_PREFIX = "certificate-chain-dispatcher-";
+    private static final String INPUT_THREAD_NAME_PREFIX = "certificate-chain-input-";
+    private static final int DISPATCHER_THREADS = 2;
+    // Results not yet consumed, per concurrent fetch: enough to keep all the fetches busy while the consumer catches up
+    private static final int PENDING_RESULTS_PER_FETCH = 2;
+
+    private final AsyncCertificateChainFetcher fetcher;
+    private final int maxConcurrentFetches;
+    private final int maxConnectionsPerHost;
+    private final boolean probeAllAddresses;
+    private final Consumer<TlsGeneratorException> warningHandler;
+
+    /**
+     * Creates a concurrent fetcher on top of an asynchronous fetcher.
+     * Fetches are launched from a small fixed number of dispatcher threads, regardless of the number of concurrent
+     * fetches; {@link AsyncCertificateChainFetcher} implementations are expected not to block for long.
+     *
+     * @param asyncCertificateChainFetcher asynchronous certificate chain fetcher
+     * @param maxConcurrentFetches maximum number of concurrent fetches
+     * @param maxConnectionsPerHost maximum number of concurrent fetches from a single host
+     * @param probeAllAddresses whether to fetch from all the addresses of a host instead of only the first one
+     * @param warningHandler handler of the failures of skipped addresses, which do not fail the fetch
+     */
+    public ConcurrentCertificateChainFetcher(final AsyncCertificateChainFetcher asyncCertificateChainFetcher,
+                                             final int maxConcurrentFetches, final int maxConnectionsPerHost,
+                                             final boolean probeAllAddresses, final Consumer<TlsGeneratorException> warningHandler) {
+        if (maxConcurrentFetches < 1 || maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Max concurrent fetches and max connections per host must be positive");
+        }
+        this.fetcher = Objects.requireNonNull(asyncCertificateChainFetcher);
+        this.maxConcurrentFetches = maxConcurrentFetches;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.probeAllAddresses = probeAllAddresses;
+        this.warningHandler = Objects.requireNonNull(warningHandler);
+    }
+
+    /**
+     * Starts consuming the URLs for fetching and returns a stream of their results in the order of the input URLs.
+     * <p>
+     * The input stream is consumed on a separate input thread and each URL is submitted for fetching as soon as it is
+     * produced, so slow input sources (e.g. LOTLs being downloaded) overlap with fetching, and fetch results become
+     * available while the rest of the input is still being produced. The input thread stays at most a bounded number
+     * of results (proportional to the maximum number of concurrent fetches) ahead of the consumer of the returned
+     * stream, and blocks until the consumer catches up. Any exception thrown by the input stream is re-thrown by the
+     * returned stream after the results of the URLs produced before the exception.
+     * The returned stream should be closed after use in order to release the input and dispatcher threads.
+     *
+     * @param urls URLs to fetch certificate chains from
+     *
+     * @return stream of fetch results, in the order of the input URLs
+     */
+    public Stream<CertificateChainFetchResult> fetchCertificateChains(final Stream<URL> urls) {
+        final ExecutorService executor = Executors.newFixedThreadPool(DISPATCHER_THREADS, ConcurrencyUtils.createDaemonThreadFactory(THREAD_NAME_PREFIX));
+        final HostQueueingDispatcher dispatcher = new HostQueueingDispatcher(executor);
+        final InputConsumer inputConsumer = new InputConsumer(urls, dispatcher, maxConcurrentFetches * PENDING_RESULTS_PER_FETCH);
+
+        final Thread inputThread = ConcurrencyUtils.createDaemonThreadFactory(INPUT_THREAD_NAME_PREFIX).newThread(inputConsumer);
+        inputThread.start();
+        return StreamSupport.stream(inputConsumer, false).onClose(() -> {
+            inputThread.interrupt();
+            executor.shutdownNow();
+        });
+    }
+
+    private CompletableFuture<List<List<X509Certificate>>> unionOf(final List<CompletableFuture<List<X509Certificate>>> fetches) {
+        return CompletableFuture.allOf(fetches.stream().map(fetch -> fetch.handle((chain, error) -> null)).toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> {
+                    final Set<List<X509Certificate>> chains = new LinkedHashSet<>();
+                    final List<Throwable> errors = new ArrayList<>();
+                    for (final CompletableFuture<List<X509Certificate>> fetch : fetches) {
+                        try {
+                            chains.add(fetch.join());
+                        } catch (CompletionException | CancellationException e) {
+                            errors.add(ConcurrencyUtils.unwrapCompletionException(e));
+                        }
+                    }
+                    if (chains.isEmpty()) {
+                        throw new CompletionException(errors.get(0));
+                    }
+                    errors.forEach(error -> warningHandler.accept(new TlsGeneratorTechnicalException("Skipping failed address: " + error.getMessage(), error)));
+                    return new ArrayList<>(chains);
+                });
+    }
+
+    /**
+     * Consumes the input stream on the input thread, and hands the fetch results over to the consuming thread in order.
+     */
+    private static final class InputConsumer extends Spliterators.AbstractSpliterator<CertificateChainFetchResult> implements Runnable {
+
+        private static final Optional<CertificateChainFetchResult> END_OF_INPUT = Optional.empty();
+
+        private final Stream<URL> urls;
+        private final HostQueueingDispatcher dispatcher;
+        private final BlockingQueue<Optional<CertificateChainFetchResult>> results;
+        private volatile Throwable inputError;
+        private boolean endOfInput;
+
+        InputConsumer(final Stream<URL> urls, final HostQueueingDispatcher dispatcher, final int maxPendingResults) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.urls = urls;
+            this.dispatcher = dispatcher;
+            this.results = new ArrayBlockingQueue<>(maxPendingResults);
+        }
+
+        @Override
+        public void run() {
+            try (Stream<URL> input = urls) {
+                input.forEach(url -> put(Optional.of(new CertificateChainFetchResult(url, dispatcher.submit(url)))));
+            } catch (RuntimeException | Error e) {
+                inputError = e;
+            } finally {
+                try {
+                    results.put(END_OF_INPUT);
+                } catch (InterruptedException e) {
+                    // The result stream has been closed, nobody is waiting for the end of the input
+                }
+            }
+        }
+
+        private void put(final Optional<CertificateChainFetchResult> result) {
+            try {
+                results.put(result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TlsGeneratorTechnicalException("Interrupted while queueing input URLs", e);
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super CertificateChainFetchResult> action) {
+            if (endOfInput) {
+                return false;
+            }
+            final Optional<CertificateChainFetchResult> result;
+            try {
+                result = results.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TlsGeneratorTechnicalException("Interrupted while waiting for input URLs", e);
+            }
+            if (result.isPresent()) {
+                action.accept(result.get());
+                return true;
+            }
+
+            endOfInput = true;
+            if (inputError instanceof Error) {
+                throw (Error) inputError;
+            } else if (inputError != null) {
+                throw (RuntimeException) inputError;
+            }
+            return false;
+        }
+
+    }
+
+    private static final class FetchTask {
+
+        private final URL url;
+        private final String host;
+        private final InetAddress address;
+        private final CompletableFuture<List<X509Certificate>> result = new CompletableFuture<>();
+
+        FetchTask(final URL url, final FetchTarget target) {
+            this.url = url;
+            this.host = target.getHost();
+            this.address = target.getAddress().orElse(null);
+        }
+
+    }
+
+    private final class HostQueueingDispatcher {
+
+        private final ExecutorService executor;
+        private final Map<String, Integer> activeConnections = new HashMap<>();
+        private final Map<String, Deque<FetchTask>> queuedTasks = new LinkedHashMap<>();
+        private final Map<FetchTarget, CompletableFuture<List<X509Certificate>>> fetchesByTarget = new HashMap<>();
+        private final Map<FetchTarget, CompletableFuture<List<List<X509Certificate>>>> probesByTarget = new HashMap<>();
+        private int activeFetches;
+
+        HostQueueingDispatcher(final ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        CompletableFuture<List<List<X509Certificate>>> submit(final URL url) {
+            final FetchTarget target = FetchTarget.of(url);
+            if (!probeAllAddresses) {
+                return submit(url, target).thenApply(Collections::singletonList);
+            }
+
+            synchronized (this) {
+                final CompletableFuture<List<List<X509Certificate>>> existingProbe = probesByTarget.get(target);
+                if (existingProbe != null) {
+                    return existingProbe;
+                }
+            }
+            // Resolve outside the lock, so that a slow lookup never delays dispatching the fetches of other hosts
+            CompletableFuture<List<List<X509Certificate>>> probe;
+            try {
+                probe = unionOf(Arrays.stream(InetAddress.getAllByName(target.getHost()))
+                        .map(address -> submit(url, target.withAddress(address)))
+                        .collect(Collectors.toList()));
+            } catch (UnknownHostException e) {
+                final String message = String.format("Failed to load TLS certificate chain from %s: unknown host %s", url, target.getHost());
+                probe = ConcurrencyUtils.failedFuture(new TlsGeneratorTechnicalException(message, e));
+            }
+            synchronized (this) {
+                probesByTarget.put(target, probe);
+            }
+            return probe;
+        }
+
+        private synchronized CompletableFuture<List<X509Certificate>> submit(final URL url, final FetchTarget target) {
+            final CompletableFuture<List<X509Certificate>> existingFetch = fetchesByTarget.get(target);
+            if (existingFetch != null) {
+                return existingFetch;
+            }
+
+            final FetchTask task = new FetchTask(url, target);
+            fetchesByTarget.put(target, task.result);
+            queuedTasks.computeIfAbsent(task.host, h -> new ArrayDeque<>()).add(task);
+            dispatchQueuedTasks();
+            return task.result;
+        }
+
+        private void dispatchQueuedTasks() {
+            final Iterator<Map.Entry<String, Deque<FetchTask>>> iterator = queuedTasks.entrySet().iterator();
+            while (activeFetches < maxConcurrentFetches && iterator.hasNext() && !executor.isShutdown()) {
+                final Map.Entry<String, Deque<FetchTask>> hostQueue = iterator.next();
+                final String host = hostQueue.getKey();
+                while (activeFetches < maxConcurrentFetches && activeConnections.getOrDefault(host, 0) < maxConnectionsPerHost) {
+                    final FetchTask task = hostQueue.getValue().poll();
+                    if (task == null) {
+                        break;
+                    }
+                    activeConnections.merge(host, 1, Integer::sum);
+                    ++activeFetches;
+                    executor.execute(() -> launch(task));
+                }
+                if (hostQueue.getValue().isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        private void launch(final FetchTask task) {
+            CompletableFuture<List<X509Certificate>> fetch;
+            try {
+                fetch = fetcher.fetchCertificateChainAsync(task.url, task.address);
+            } catch (RuntimeException e) {
+                fetch = ConcurrencyUtils.failedFuture(e);
+            }
+            fetch.whenComplete((chain, error) -> {
+                release(task.host);
+                if (error != null) {
+                    task.result.completeExceptionally(ConcurrencyUtils.unwrapCompletionException(error));
+                } else {
+                    task.result.complete(chain);
+                }
+            });
+        }
+
+        private synchronized void release(final String host) {
+            activeConnections.compute(host, (h, count) -> (count == null || count <= 1) ? null : count - 1);
+            --activeFetches;
+            dispatchQueuedTasks();
+        }
+
+    }
+
+}
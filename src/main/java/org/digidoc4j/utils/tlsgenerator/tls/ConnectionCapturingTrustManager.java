@@ -0,0 +1,71 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Trust manager that trusts everything and forwards the certificate chains of the connections it is currently
+ * capturing to their dedicated {@link AccumulatingTrustManager}s.
+ * <p>
+ * This allows a single {@link javax.net.ssl.SSLContext} to be shared by any number of concurrent connections,
+ * while the certificate chains received during each handshake are still kept separate.
+ * Connections are identified by their {@link Socket} or {@link SSLEngine}; chains received by connections that are
+ * not being captured are ignored.
+ */
+final class ConnectionCapturingTrustManager extends X509ExtendedTrustManager {
+
+    private final Map<Object, AccumulatingTrustManager> captures = new ConcurrentHashMap<>();
+
+    void startCapture(final Object connection, final AccumulatingTrustManager capture) {
+        captures.put(Objects.requireNonNull(connection), Objects.requireNonNull(capture));
+    }
+
+    void stopCapture(final Object connection) {
+        captures.remove(Objects.requireNonNull(connection));
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType, final Socket socket) throws CertificateException {
+        checkServerTrusted(chain, authType, (Object) socket);
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType, final SSLEngine engine) throws CertificateException {
+        checkServerTrusted(chain, authType, (Object) engine);
+    }
+
+    private void checkServerTrusted(final X509Certificate[] chain, final String authType, final Object connection) throws CertificateException {
+        final AccumulatingTrustManager capture = (connection != null) ? captures.get(connection) : null;
+        if (capture != null) {
+            capture.checkServerTrusted(chain, authType);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType) {
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType, final Socket socket) {
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType, final SSLEngine engine) {
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType) {
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import java.net.URLConnection;
+
+/**
+ * Timeouts for outgoing connections, in milliseconds. A timeout of zero is interpreted as an infinite timeout.
+ */
+public final class ConnectionTimeouts {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10_000;
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT = 30_000;
+
+    private final int connectTimeout;
+    private final int handshakeTimeout;
+
+    public ConnectionTimeouts(final int connectTimeout, final int handshakeTimeout) {
+        if (connectTimeout < 0 || handshakeTimeout < 0) {
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        }
+        this.connectTimeout = connectTimeout;
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Returns the timeout for completing a TLS handshake.
+     * For blocking connections, this is applied as the read timeout of the connection.
+     *
+     * @return handshake timeout in milliseconds
+     */
+    public int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    public void applyTo(final URLConnection urlConnection) {
+        urlConnection.setConnectTimeout(connectTimeout);
+        urlConnection.setReadTimeout(handshakeTimeout);
+    }
+
+}
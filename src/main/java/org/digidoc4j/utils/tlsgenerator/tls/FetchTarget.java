@@ -0,0 +1,92 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Normalized TLS endpoint that a certificate chain is fetched from.
+ * <p>
+ * The certificate chain served by an endpoint only depends on the host, the port and the SNI server name sent during
+ * the handshake. As the server name is always derived from the host of the URL, two URLs with the same (case-insensitive)
+ * host and the same effective port always yield the same certificate chain, regardless of their paths.
+ * <p>
+ * A target may optionally be pinned to a specific address of its host, in which case the connection is made to that
+ * address instead of whichever address the host resolves to first, while still using the host as the server name.
+ */
+public final class FetchTarget {
+
+    public static final int DEFAULT_HTTPS_PORT = 443;
+
+    private final String host;
+    private final int port;
+    private final InetAddress address;
+
+    private FetchTarget(final String host, final int port, final InetAddress address) {
+        this.host = host;
+        this.port = port;
+        this.address = address;
+    }
+
+    public static FetchTarget of(final URL url) {
+        final int port = (url.getPort() > 0) ? url.getPort() : DEFAULT_HTTPS_PORT;
+        return new FetchTarget(url.getHost().toLowerCase(Locale.ROOT), port, null);
+    }
+
+    /**
+     * Returns a target with the same host and port as this target, pinned to the specified address.
+     *
+     * @param address the address to connect to, or {@code null} to connect to whichever address the host resolves to
+     *
+     * @return target pinned to the specified address
+     */
+    public FetchTarget withAddress(final InetAddress address) {
+        return Objects.equals(this.address, address) ? this : new FetchTarget(host, port, address);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Optional<InetAddress> getAddress() {
+        return Optional.ofNullable(address);
+    }
+
+    /**
+     * Returns the socket address to connect to: the pinned address if present, otherwise the unresolved host.
+     *
+     * @return the socket address of this target
+     */
+    public InetSocketAddress getSocketAddress() {
+        return (address != null) ? new InetSocketAddress(address, port) : new InetSocketAddress(host, port);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        } else if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+        final FetchTarget that = (FetchTarget) other;
+        return port == that.port && host.equals(that.host) && Objects.equals(address, that.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(host, port, address);
+    }
+
+    @Override
+    public String toString() {
+        return (address != null) ? host + ':' + port + " (" + address.getHostAddress() + ')' : host + ':' + port;
+    }
+
+}
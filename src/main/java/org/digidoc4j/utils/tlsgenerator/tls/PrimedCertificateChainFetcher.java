@@ -0,0 +1,56 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves certificate chains that have already been captured elsewhere (e.g. while probing redirects) without
+ * connecting again, and delegates to the underlying fetcher otherwise.
+ * <p>
+ * Captured chains are only served for fetches that are not bound to a specific address, as the address a chain
+ * was captured from is not known.
+ */
+public final class PrimedCertificateChainFetcher implements AsyncCertificateChainFetcher {
+
+    private final AsyncCertificateChainFetcher fetcher;
+    private final Map<FetchTarget, List<X509Certificate>> capturedChains = new ConcurrentHashMap<>();
+
+    public PrimedCertificateChainFetcher(final AsyncCertificateChainFetcher asyncCertificateChainFetcher) {
+        fetcher = Objects.requireNonNull(asyncCertificateChainFetcher);
+    }
+
+    /**
+     * Records the certificate chain captured from the specified URL, to be served for subsequent fetches from the
+     * same {@link FetchTarget}. The first chain captured for a target is kept.
+     *
+     * @param url URL the certificate chain was captured from
+     * @param chain captured certificate chain
+     */
+    public void prime(final URL url, final List<X509Certificate> chain) {
+        if (!chain.isEmpty()) {
+            capturedChains.putIfAbsent(FetchTarget.of(url), Collections.unmodifiableList(chain));
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<X509Certificate>> fetchCertificateChainAsync(final URL url, final InetAddress address) {
+        final List<X509Certificate> capturedChain = (address == null) ? capturedChains.get(FetchTarget.of(url)) : null;
+        if (capturedChain != null) {
+            return CompletableFuture.completedFuture(capturedChain);
+        }
+        return fetcher.fetchCertificateChainAsync(url, address);
+    }
+
+    @Override
+    public void close() {
+        fetcher.close();
+    }
+
+}
@@ -0,0 +1,189 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import org.digidoc4j.utils.tlsgenerator.concurrent.ConcurrencyUtils;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorException;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Retries fetches that failed due to transient I/O errors (connection failures, resets, timeouts) with jittered
+ * exponential backoff, and stops connecting to hosts that keep failing.
+ * <p>
+ * Each host has its own circuit breaker: after the configured number of consecutive transient failures, fetches from
+ * that host fail immediately for a cool-down period, after which a single trial fetch is let through.
+ * A fetch that reaches the host closes the circuit again: besides successful fetches, these are failures of other
+ * kinds (e.g. handshake failures), which are not retried and do not count towards opening the circuit.
+ * <p>
+ * A fetch is complete only after its last attempt, so a fetch waiting for its next attempt still counts towards the
+ * maximum number of concurrent fetches of a {@link ConcurrentCertificateChainFetcher} on top of this fetcher.
+ */
+public final class RetryingCertificateChainFetcher implements AsyncCertificateChainFetcher {
+
+    private static final String THREAD_NAME_PREFIX = "certificate-chain-retry-";
+    private static final long MAX_BACKOFF = 60_000L;
+    private static final long CIRCUIT_BREAKER_COOL_DOWN = 60_000L;
+
+    private final AsyncCertificateChainFetcher fetcher;
+    private final int maxRetries;
+    private final long initialBackoff;
+    private final int failureThreshold;
+    private final long coolDown;
+    private final Consumer<TlsGeneratorException> warningHandler;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    /**
+     * @param asyncCertificateChainFetcher underlying fetcher
+     * @param maxRetries maximum number of retries per fetch, 0 for no retries
+     * @param initialBackoff backoff before the first retry in milliseconds, doubled for each subsequent retry
+     * @param failureThreshold number of consecutive failures from a host that opens its circuit, 0 for no circuit breaking
+     * @param warningHandler handler of the failures that are retried
+     */
+    public RetryingCertificateChainFetcher(final AsyncCertificateChainFetcher asyncCertificateChainFetcher,
+                                           final int maxRetries, final long initialBackoff, final int failureThreshold,
+                                           final Consumer<TlsGeneratorException> warningHandler) {
+        this(asyncCertificateChainFetcher, maxRetries, initialBackoff, failureThreshold, CIRCUIT_BREAKER_COOL_DOWN, warningHandler);
+    }
+
+    RetryingCertificateChainFetcher(final AsyncCertificateChainFetcher asyncCertificateChainFetcher,
+                                    final int maxRetries, final long initialBackoff, final int failureThreshold,
+                                    final long coolDown, final Consumer<TlsGeneratorException> warningHandler) {
+        if (maxRetries < 0 || initialBackoff < 0 || failureThreshold < 0 || coolDown < 0) {
+            throw new IllegalArgumentException("Retries, backoff, failure threshold and cool-down must not be negative");
+        }
+        this.fetcher = Objects.requireNonNull(asyncCertificateChainFetcher);
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.failureThreshold = failureThreshold;
+        this.coolDown = coolDown;
+        this.warningHandler = Objects.requireNonNull(warningHandler);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(ConcurrencyUtils.createDaemonThreadFactory(THREAD_NAME_PREFIX));
+    }
+
+    @Override
+    public CompletableFuture<List<X509Certificate>> fetchCertificateChainAsync(final URL url, final InetAddress address) {
+        final CompletableFuture<List<X509Certificate>> result = new CompletableFuture<>();
+        attempt(url, address, circuitBreakers.computeIfAbsent(FetchTarget.of(url).getHost(), CircuitBreaker::new), 0, result);
+        return result;
+    }
+
+    private void attempt(final URL url, final InetAddress address, final CircuitBreaker circuitBreaker,
+                         final int retry, final CompletableFuture<List<X509Certificate>> result) {
+        if (!circuitBreaker.allowRequest()) {
+            final String message = String.format("Failed to load TLS certificate chain from %s: too many consecutive failures from host %s",
+                    url, circuitBreaker.host);
+            result.completeExceptionally(new TlsGeneratorTechnicalException(message));
+            return;
+        }
+
+        CompletableFuture<List<X509Certificate>> fetch;
+        try {
+            fetch = fetcher.fetchCertificateChainAsync(url, address);
+        } catch (RuntimeException e) {
+            fetch = ConcurrencyUtils.failedFuture(e);
+        }
+        fetch.whenComplete((chain, error) -> {
+            if (error == null) {
+                circuitBreaker.recordSuccess();
+                result.complete(chain);
+                return;
+            }
+
+            final Throwable cause = ConcurrencyUtils.unwrapCompletionException(error);
+            if (!isTransientFailure(cause)) {
+                // The host did respond, so it is reachable; this also settles a trial fetch of a half-open circuit
+                circuitBreaker.recordSuccess();
+                result.completeExceptionally(cause);
+                return;
+            }
+            circuitBreaker.recordFailure();
+            if (retry >= maxRetries) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            final long backoff = getBackoff(retry);
+            final String message = String.format("Retrying %s in %d ms (%d/%d): %s", url, backoff, retry + 1, maxRetries, cause.getMessage());
+            warningHandler.accept(new TlsGeneratorTechnicalException(message, cause));
+            try {
+                scheduler.schedule(() -> attempt(url, address, circuitBreaker, retry + 1, result), backoff, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    private long getBackoff(final int retry) {
+        final long maxBackoff = Math.min(MAX_BACKOFF, initialBackoff << Math.min(retry, 30));
+        // "Equal jitter": keep half of the backoff and randomize the other half, so that retries to the same host spread out
+        return maxBackoff / 2 + ThreadLocalRandom.current().nextLong(maxBackoff / 2 + 1);
+    }
+
+    private static boolean isTransientFailure(final Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException && !(cause instanceof SSLException)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        fetcher.close();
+    }
+
+    private final class CircuitBreaker {
+
+        private final String host;
+        private int consecutiveFailures;
+        private long openUntil;
+        private boolean trialInProgress;
+
+        CircuitBreaker(final String host) {
+            this.host = host;
+        }
+
+        synchronized boolean allowRequest() {
+            if (failureThreshold == 0 || consecutiveFailures < failureThreshold) {
+                return true;
+            }
+            if (trialInProgress || System.currentTimeMillis() < openUntil) {
+                return false;
+            }
+            trialInProgress = true;
+            return true;
+        }
+
+        synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+            trialInProgress = false;
+        }
+
+        synchronized void recordFailure() {
+            trialInProgress = false;
+            if (++consecutiveFailures >= failureThreshold && failureThreshold > 0) {
+                openUntil = System.currentTimeMillis() + coolDown;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,290 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches certificate chains using non-blocking {@link SSLEngine} handshakes that are all driven by a single selector
+ * thread, so the number of concurrent handshakes is not limited by the number of available threads.
+ * <p>
+ * Each handshake only holds a socket channel and three buffers of a single TLS record in size.
+ * The handshake is abandoned as soon as it has finished, without exchanging any application data.
+ */
+public final class SelectorCertificateChainFetcher implements AsyncCertificateChainFetcher {
+
+    private static final String THREAD_NAME = "certificate-chain-selector";
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    private static final long TIMEOUT_CHECK_INTERVAL = 100L;
+
+    private final SharedTlsContext tlsContext;
+    private final ConnectionTimeouts timeouts;
+    private final boolean abortAfterCapture;
+    private final Selector selector;
+    private final Queue<Handshake> pendingHandshakes = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    public SelectorCertificateChainFetcher(final TlsProtocol tlsProtocol, final ConnectionTimeouts connectionTimeouts, final boolean abortAfterCapture) {
+        this.tlsContext = SharedTlsContext.getInstance(Objects.requireNonNull(tlsProtocol));
+        this.timeouts = Objects.requireNonNull(connectionTimeouts);
+        this.abortAfterCapture = abortAfterCapture;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new TlsGeneratorTechnicalException("Failed to open selector: " + e.getMessage(), e);
+        }
+        final Thread selectorThread = new Thread(this::runSelectorLoop, THREAD_NAME);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    @Override
+    public CompletableFuture<List<X509Certificate>> fetchCertificateChainAsync(final URL url, final InetAddress address) {
+        final Handshake handshake = new Handshake(url, FetchTarget.of(url).withAddress(address));
+        try {
+            handshake.open();
+        } catch (TlsGeneratorTechnicalException | IOException e) {
+            handshake.fail(e);
+            return handshake.result;
+        }
+        pendingHandshakes.add(handshake);
+        selector.wakeup();
+        if (closed) {
+            handshake.fail(new IOException("Fetcher closed"));
+        }
+        return handshake.result;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void runSelectorLoop() {
+        try {
+            while (!closed) {
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+                registerPendingHandshakes();
+                failExpiredHandshakes();
+                final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    final SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    ((Handshake) key.attachment()).onSelected(key);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            closed = true;
+        } finally {
+            selector.keys().forEach(key -> ((Handshake) key.attachment()).fail(new IOException("Fetcher closed")));
+            pendingHandshakes.forEach(handshake -> handshake.fail(new IOException("Fetcher closed")));
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing to do if closing the selector fails
+            }
+        }
+    }
+
+    private void registerPendingHandshakes() {
+        Handshake handshake;
+        while ((handshake = pendingHandshakes.poll()) != null) {
+            try {
+                final SelectionKey key = handshake.channel.register(selector, SelectionKey.OP_CONNECT, handshake);
+                if (handshake.channel.isConnected()) {
+                    handshake.onSelected(key); // Connecting may complete immediately, in which case OP_CONNECT never fires
+                }
+            } catch (IOException e) {
+                handshake.fail(e);
+            }
+        }
+    }
+
+    private void failExpiredHandshakes() {
+        final long now = System.nanoTime();
+        for (final SelectionKey key : selector.keys()) {
+            ((Handshake) key.attachment()).failIfExpired(now);
+        }
+    }
+
+    private static long toDeadline(final long start, final int timeoutMillis) {
+        return (timeoutMillis > 0) ? start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+    }
+
+    private final class Handshake {
+
+        private final URL url;
+        private final FetchTarget target;
+        private final String location;
+        private final AccumulatingTrustManager trustManager = new AccumulatingTrustManager(abortAfterCapture);
+        private long deadline;
+        private final CompletableFuture<List<X509Certificate>> result = new CompletableFuture<>();
+        private SocketChannel channel;
+        private SSLEngine engine;
+        private ByteBuffer networkIn;
+        private ByteBuffer networkOut;
+        private ByteBuffer applicationIn;
+
+        Handshake(final URL url, final FetchTarget target) {
+            this.url = url;
+            this.target = target;
+            this.location = CertificateChainFetcher.getLocation(url, target);
+        }
+
+        void open() throws IOException {
+            engine = tlsContext.createCaptureSslEngine(url.getHost());
+            tlsContext.startCapture(engine, trustManager);
+
+            deadline = toDeadline(System.nanoTime(), timeouts.getConnectTimeout());
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.connect(target.getSocketAddress());
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        void onSelected(final SelectionKey key) {
+            try {
+                if (networkIn == null) {
+                    if (!channel.finishConnect()) {
+                        return;
+                    }
+                    deadline = toDeadline(System.nanoTime(), timeouts.getHandshakeTimeout());
+                    engine.beginHandshake();
+                    networkIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                    networkOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                    applicationIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                }
+                advance(key);
+            } catch (SSLException e) {
+                if (CertificateChainFetcher.isAbortedAfterCapture(trustManager)) {
+                    complete();
+                } else {
+                    fail(e);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        void failIfExpired(final long now) {
+            if (now - deadline > 0 && deadline != Long.MAX_VALUE) {
+                fail(new SocketTimeoutException((networkIn == null) ? "Connect timed out" : "Handshake timed out"));
+            }
+        }
+
+        private void advance(final SelectionKey key) throws IOException {
+            while (true) {
+                if (networkOut.position() > 0 && !flush()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+                    case NEED_WRAP:
+                        checkResult(engine.wrap(EMPTY_BUFFER, networkOut));
+                        break;
+                    case FINISHED:
+                    case NOT_HANDSHAKING:
+                        complete();
+                        return;
+                    default:
+                        if (!unwrap()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                }
+            }
+        }
+
+        private boolean flush() throws IOException {
+            networkOut.flip();
+            channel.write(networkOut);
+            networkOut.compact();
+            return networkOut.position() == 0;
+        }
+
+        private boolean unwrap() throws IOException {
+            networkIn.flip();
+            final SSLEngineResult result = engine.unwrap(networkIn, applicationIn);
+            networkIn.compact();
+            applicationIn.clear(); // Any application data is of no interest
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                final int bytesRead = channel.read(networkIn);
+                if (bytesRead < 0) {
+                    throw new SSLException("Connection closed by peer during handshake");
+                }
+                return bytesRead > 0;
+            }
+            checkResult(result);
+            return true;
+        }
+
+        private void checkResult(final SSLEngineResult result) throws SSLException {
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("Connection closed during handshake");
+            } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                throw new SSLException("Unexpected buffer overflow during handshake");
+            }
+        }
+
+        private void complete() {
+            closeChannel();
+            try {
+                result.complete(CertificateChainFetcher.getCertificateChain(trustManager, location));
+            } catch (TlsGeneratorTechnicalException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        void fail(final Exception exception) {
+            closeChannel();
+            final String message = String.format("Failed to load TLS certificate chain from %s: %s", location, exception.getMessage());
+            result.completeExceptionally(new TlsGeneratorTechnicalException(message, exception));
+        }
+
+        private void closeChannel() {
+            if (engine != null) {
+                tlsContext.stopCapture(engine);
+                engine.closeOutbound();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing to do if closing the channel fails
+                }
+            }
+        }
+
+    }
+
+}
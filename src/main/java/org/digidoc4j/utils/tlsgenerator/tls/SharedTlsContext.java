@@ -0,0 +1,185 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Lazily initialized {@link SSLContext}, shared by all connections that use the same TLS protocol.
+ * <p>
+ * Initializing an SSL context (provider lookup, seeding its random number generator) is expensive compared to
+ * creating sockets or engines from an existing one, so the context is created only once per protocol.
+ * The context trusts all certificates. Certificate chains can be captured separately for each connection using
+ * {@link #startCapture(Object, AccumulatingTrustManager)} before the handshake of the connection is started.
+ * <p>
+ * Capture connections never resume a session: a resumed handshake carries no certificates, and the session it
+ * resumes may have been established with another server behind the same host name (e.g. another of its addresses).
+ * They are created from a separate context, so that their sessions neither evict nor reuse the sessions of the
+ * HTTP(S) connections, which may resume sessions freely.
+ */
+public final class SharedTlsContext {
+
+    private static final Map<TlsProtocol, SharedTlsContext> SHARED_CONTEXTS = new ConcurrentHashMap<>();
+    private static final Pattern IPV4_LITERAL = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+    // Capture sessions are never resumed, there is no point in keeping more than one of them
+    private static final int CAPTURE_SESSION_CACHE_SIZE = 1;
+
+    private final ConnectionCapturingTrustManager trustManager = new ConnectionCapturingTrustManager();
+    private final AtomicLong captureSockets = new AtomicLong();
+    private final SSLContext sslContext;
+    private final SSLSocketFactory socketFactory;
+    private final SSLContext captureContext;
+    private final SSLSocketFactory captureSocketFactory = new CaptureSocketFactory();
+
+    private SharedTlsContext(final TlsProtocol tlsProtocol) {
+        sslContext = TlsUtils.createSslContext(tlsProtocol, trustManager);
+        socketFactory = sslContext.getSocketFactory();
+        captureContext = TlsUtils.createSslContext(tlsProtocol, trustManager);
+        captureContext.getClientSessionContext().setSessionCacheSize(CAPTURE_SESSION_CACHE_SIZE);
+    }
+
+    public static SharedTlsContext getInstance(final TlsProtocol tlsProtocol) {
+        return SHARED_CONTEXTS.computeIfAbsent(Objects.requireNonNull(tlsProtocol), SharedTlsContext::new);
+    }
+
+    public SSLSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * Returns a socket factory for HTTPS connections whose server certificates are captured, e.g. with
+     * {@link javax.net.ssl.HttpsURLConnection#getServerCertificates()}. The sockets it creates are layered with
+     * {@link #createCaptureSocket(Socket, String, int)}, so their handshakes never resume a session.
+     * The same factory is returned every time, so that its connections can be kept alive and reused.
+     *
+     * @return socket factory for capture connections
+     */
+    public SSLSocketFactory getCaptureSocketFactory() {
+        return captureSocketFactory;
+    }
+
+    /**
+     * Creates a client socket for capturing the certificate chain of a server, layered over a connected socket.
+     *
+     * @param socket connected socket
+     * @param host host of the server, sent as the SNI server name unless it is an IP address
+     * @param port port of the server
+     *
+     * @return socket whose handshake never resumes a session
+     *
+     * @throws IOException if the socket cannot be created
+     */
+    public SSLSocket createCaptureSocket(final Socket socket, final String host, final int port) throws IOException {
+        // The client session cache is looked up by the peer host and port, so a peer host that is unique to this
+        // socket never matches a cached session
+        final String sessionKey = host + '#' + captureSockets.incrementAndGet();
+        final SSLSocket sslSocket = (SSLSocket) captureContext.getSocketFactory().createSocket(socket, sessionKey, port, true);
+        final SSLParameters sslParameters = sslSocket.getSSLParameters();
+        sslParameters.setServerNames(getServerNames(host));
+        sslSocket.setSSLParameters(sslParameters);
+        return sslSocket;
+    }
+
+    /**
+     * Creates a client engine for capturing the certificate chain of a server.
+     *
+     * @param host host of the server, sent as the SNI server name unless it is an IP address
+     *
+     * @return engine whose handshake never resumes a session
+     */
+    public SSLEngine createCaptureSslEngine(final String host) {
+        // An engine created without peer information has no session to resume
+        final SSLEngine sslEngine = captureContext.createSSLEngine();
+        sslEngine.setUseClientMode(true);
+        final SSLParameters sslParameters = sslEngine.getSSLParameters();
+        sslParameters.setServerNames(getServerNames(host));
+        sslEngine.setSSLParameters(sslParameters);
+        return sslEngine;
+    }
+
+    /**
+     * Starts capturing the certificate chains received by the specified connection into the specified trust manager.
+     *
+     * @param connection the {@link java.net.Socket} or {@link SSLEngine} of the connection
+     * @param capture the trust manager to capture the certificate chains into
+     */
+    public void startCapture(final Object connection, final AccumulatingTrustManager capture) {
+        trustManager.startCapture(connection, capture);
+    }
+
+    public void stopCapture(final Object connection) {
+        trustManager.stopCapture(connection);
+    }
+
+    /**
+     * Socket factory creating capture sockets. Unconnected sockets are not supported, so that
+     * {@link javax.net.ssl.HttpsURLConnection} connects plain sockets and layers them with
+     * {@link #createSocket(Socket, String, int, boolean)}.
+     */
+    private final class CaptureSocketFactory extends SSLSocketFactory {
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return captureContext.getSocketFactory().getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return captureContext.getSocketFactory().getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose) throws IOException {
+            // Capture sockets always close the underlying socket
+            return createCaptureSocket(socket, host, port);
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            return createCaptureSocket(new Socket(host, port), host, port);
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+            return createCaptureSocket(new Socket(host, port, localAddress, localPort), host, port);
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port) throws IOException {
+            return createCaptureSocket(new Socket(address, port), address.getHostName(), port);
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+            return createCaptureSocket(new Socket(address, port, localAddress, localPort), address.getHostName(), port);
+        }
+
+    }
+
+    private static List<SNIServerName> getServerNames(final String host) {
+        // Same rules as the JDK applies to the peer host of a connection: no SNI for IP addresses and unqualified names
+        if (host.indexOf('.') <= 0 || host.endsWith(".") || host.indexOf(':') >= 0 || IPV4_LITERAL.matcher(host).matches()) {
+            return Collections.emptyList();
+        }
+        try {
+            return Collections.singletonList(new SNIHostName(host));
+        } catch (IllegalArgumentException e) {
+            return Collections.emptyList();
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import org.digidoc4j.utils.tlsgenerator.concurrent.ConcurrencyUtils;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the blocking fetches of a {@link CertificateChainFetcher} on a fixed-size pool of worker threads.
+ */
+public final class ThreadPoolCertificateChainFetcher implements AsyncCertificateChainFetcher {
+
+    private static final String THREAD_NAME_PREFIX = "certificate-chain-fetcher-";
+
+    private final CertificateChainFetcher fetcher;
+    private final ExecutorService executor;
+
+    public ThreadPoolCertificateChainFetcher(final CertificateChainFetcher certificateChainFetcher, final int threads) {
+        fetcher = Objects.requireNonNull(certificateChainFetcher);
+        executor = Executors.newFixedThreadPool(threads, ConcurrencyUtils.createDaemonThreadFactory(THREAD_NAME_PREFIX));
+    }
+
+    @Override
+    public CompletableFuture<List<X509Certificate>> fetchCertificateChainAsync(final URL url, final InetAddress address) {
+        try {
+            return CompletableFuture.supplyAsync(() -> fetcher.fetchCertificateChainFrom(url, address), executor);
+        } catch (RejectedExecutionException e) {
+            return ConcurrencyUtils.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
@@ -4,7 +4,6 @@ import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorInputException;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
 
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
@@ -22,15 +21,15 @@ public final class TlsUtils {
         }
     }
 
-    public static SSLSocketFactory createSocketFactory(
+    public static SSLContext createSslContext(
             final TlsProtocol tlsProtocol, final TrustManager... trustManagers
     ) throws TlsGeneratorTechnicalException {
         try {
             final SSLContext sslContext = SSLContext.getInstance(tlsProtocol.getFormalName());
             sslContext.init(null, trustManagers, null);
-            return sslContext.getSocketFactory();
+            return sslContext;
         } catch (NoSuchAlgorithmException | KeyManagementException e) {
-            throw new TlsGeneratorTechnicalException("Failed to initialize socket factory: " + e.getMessage(), e);
+            throw new TlsGeneratorTechnicalException("Failed to initialize SSL context: " + e.getMessage(), e);
         }
     }
 
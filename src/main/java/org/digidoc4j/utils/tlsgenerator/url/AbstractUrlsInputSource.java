@@ -3,20 +3,26 @@ package org.digidoc4j.utils.tlsgenerator.url;
 import org.digidoc4j.utils.tlsgenerator.UrlsInputSource;
 
 import java.net.URL;
-import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+/**
+ * Lazy source of distinct URLs.
+ * The URLs are not produced until the stream returned by {@link #stream()} is consumed, and each call to
+ * {@link #stream()} produces the URLs anew.
+ */
 public abstract class AbstractUrlsInputSource implements UrlsInputSource {
 
-    private final URL[] urls;
+    private final Supplier<Stream<URL>> urls;
 
-    protected AbstractUrlsInputSource(final Stream<URL> urls) {
-        this.urls = urls.filter(UrlUtils.statefulDistinctFilter()).toArray(URL[]::new);
+    protected AbstractUrlsInputSource(final Supplier<Stream<URL>> urls) {
+        this.urls = Objects.requireNonNull(urls);
     }
 
     @Override
     public Stream<URL> stream() {
-        return Arrays.stream(urls);
+        return urls.get().filter(UrlUtils.statefulDistinctFilter());
     }
 
 }
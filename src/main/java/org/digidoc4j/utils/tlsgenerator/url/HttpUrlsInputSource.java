@@ -5,13 +5,16 @@ import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorInputException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
+import java.util.stream.Collectors;
 
 public final class HttpUrlsInputSource extends AbstractUrlsInputSource {
 
     public HttpUrlsInputSource(final List<String> urlStrings) {
+        // Parse the URLs up front, so that invalid input is reported before anything is fetched
         super(urlStrings.stream().distinct()
                 .map(HttpUrlsInputSource::parseURL)
                 .peek(HttpUrlsInputSource::validateUrlProtocol)
+                .collect(Collectors.toList())::stream
         );
     }
 
@@ -1,9 +1,12 @@
 package org.digidoc4j.utils.tlsgenerator.url;
 
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 
 public final class UrlUtils {
@@ -27,12 +30,39 @@ public final class UrlUtils {
         return isHttpsUrlProtocol(url.getProtocol());
     }
 
+    /**
+     * Returns the canonical form of a URL, suitable for use as a hash key.
+     * <p>
+     * The scheme and the host are lower-cased, the default port of the scheme is made explicit, an empty path is
+     * replaced with {@code /}, dot segments are removed from the path, percent-encoded octets are upper-cased and the
+     * fragment is dropped. The host is never resolved, so URLs with different hostnames never have the same key.
+     *
+     * @param url the URL to canonicalize
+     *
+     * @return the canonical key of the URL
+     */
+    public static String getCanonicalKey(final URL url) {
+        final StringBuilder key = new StringBuilder(url.toExternalForm().length() + 8)
+                .append(url.getProtocol().toLowerCase(Locale.ROOT)).append("://");
+        if (url.getUserInfo() != null) {
+            key.append(url.getUserInfo()).append('@');
+        }
+        key.append(url.getHost().toLowerCase(Locale.ROOT))
+                .append(':').append((url.getPort() >= 0) ? url.getPort() : url.getDefaultPort())
+                .append(normalizePath(url.getPath()));
+        if (url.getQuery() != null) {
+            key.append('?').append(normalizePercentEncoding(url.getQuery()));
+        }
+        return key.toString();
+    }
+
     /**
      * Improved URL comparison method that always considers URLs with different hostnames to not be equal.
      * <p>
      * {@link URL#equals(Object)} considers two URLs to be equal if their hostnames resolve to the same IP address.
      * This is not correct when fetching TLS certificates, because different hosts that are hosted on the same address
-     * can and should use different TLS certificates.
+     * can and should use different TLS certificates. This method compares the canonical keys of the URLs instead
+     * (see {@link #getCanonicalKey(URL)}).
      *
      * @param url1 the first URL to compare
      * @param url2 the second URL to compare
@@ -42,8 +72,7 @@ public final class UrlUtils {
     public static boolean equals(final URL url1, final URL url2) {
         return (url1 == url2) || (
                 url1 != null && url2 != null &&
-                url1.getHost().equals(url2.getHost()) &&
-                url1.equals(url2)
+                getCanonicalKey(url1).equals(getCanonicalKey(url2))
         );
     }
 
@@ -52,13 +81,51 @@ public final class UrlUtils {
                 .anyMatch(url -> equals(url, urlToCompare));
     }
 
+    /**
+     * Returns a thread-safe filter that only accepts the first occurrence of each URL, as determined by the canonical
+     * keys of the URLs (see {@link #getCanonicalKey(URL)}).
+     *
+     * @return stateful distinct filter of URLs
+     */
     public static Predicate<URL> statefulDistinctFilter() {
-        final List<URL> seenURLs = new LinkedList<>();
-        return url -> {
-            synchronized (seenURLs) {
-                return !contains(seenURLs, url) && seenURLs.add(url);
+        final Set<String> seenKeys = ConcurrentHashMap.newKeySet();
+        return url -> seenKeys.add(getCanonicalKey(url));
+    }
+
+    private static String normalizePath(final String path) {
+        if (path.isEmpty()) {
+            return "/";
+        }
+        // Remove dot segments (RFC 3986, section 5.2.4)
+        final Deque<String> segments = new ArrayDeque<>();
+        final String[] inputSegments = path.split("/", -1);
+        for (int i = 1; i < inputSegments.length; ++i) {
+            final String segment = inputSegments[i];
+            final boolean last = (i == inputSegments.length - 1);
+            if (".".equals(segment) || "..".equals(segment)) {
+                if ("..".equals(segment) && !segments.isEmpty()) {
+                    segments.removeLast();
+                }
+                if (last) {
+                    segments.addLast("");
+                }
+            } else {
+                segments.addLast(normalizePercentEncoding(segment));
             }
-        };
+        }
+        return "/" + String.join("/", segments);
+    }
+
+    private static String normalizePercentEncoding(final String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        final StringBuilder normalized = new StringBuilder(value);
+        for (int i = value.indexOf('%'); i >= 0 && i + 2 < value.length(); i = value.indexOf('%', i + 1)) {
+            normalized.setCharAt(i + 1, Character.toUpperCase(value.charAt(i + 1)));
+            normalized.setCharAt(i + 2, Character.toUpperCase(value.charAt(i + 2)));
+        }
+        return normalized.toString();
     }
 
     private UrlUtils() {}
@@ -0,0 +1,171 @@
+package org.digidoc4j.utils.tlsgenerator.x509;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Certificate along with its metadata, computed once when the certificate is interned by {@link CertificateInterner}.
+ * Two infos are equal if their certificates have the same fingerprint.
+ */
+public final class CertificateInfo {
+
+    private static final String SUBJECT_KEY_IDENTIFIER_OID = "2.5.29.14";
+    private static final String AUTHORITY_KEY_IDENTIFIER_OID = "2.5.29.35";
+    private static final int AUTHORITY_KEY_IDENTIFIER_KEY_ID_TAG = 0x80;
+    private static final String AUTHORITY_INFO_ACCESS_OID = "1.3.6.1.5.5.7.1.1";
+    // DER encoded contents of the id-ad-caIssuers object identifier 1.3.6.1.5.5.7.48.2
+    private static final byte[] CA_ISSUERS_ACCESS_METHOD = {0x2B, 0x06, 0x01, 0x05, 0x05, 0x07, 0x30, 0x02};
+    private static final int GENERAL_NAME_URI_TAG = 0x86;
+
+    private final X509Certificate certificate;
+    private final String fingerprint;
+    private final String simpleName;
+    private final String subjectKeyIdentifier;
+    private final String authorityKeyIdentifier;
+    private final Instant notAfter;
+    private final boolean certificateAuthority;
+    private final boolean selfIssued;
+    private final List<String> caIssuersUrls;
+
+    CertificateInfo(final X509Certificate certificate, final String fingerprint) {
+        this.certificate = Objects.requireNonNull(certificate);
+        this.fingerprint = Objects.requireNonNull(fingerprint);
+        this.simpleName = X509Utils.computeCertificateSimpleName(certificate);
+        this.subjectKeyIdentifier = readSubjectKeyIdentifier(certificate);
+        this.authorityKeyIdentifier = readAuthorityKeyIdentifier(certificate);
+        this.notAfter = certificate.getNotAfter().toInstant();
+        this.certificateAuthority = certificate.getBasicConstraints() >= 0;
+        this.selfIssued = certificate.getSubjectX500Principal().equals(certificate.getIssuerX500Principal());
+        this.caIssuersUrls = readCaIssuersUrls(certificate);
+    }
+
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    /**
+     * @return lower-case hex encoded SHA-256 digest of the encoded certificate
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the common name of the subject, or the whole subject DN if it has no common name
+     */
+    public String getSimpleName() {
+        return simpleName;
+    }
+
+    /**
+     * @return lower-case hex encoded key identifier of the subject key identifier extension, if present
+     */
+    public Optional<String> getSubjectKeyIdentifier() {
+        return Optional.ofNullable(subjectKeyIdentifier);
+    }
+
+    /**
+     * @return lower-case hex encoded key identifier of the authority key identifier extension, if present
+     */
+    public Optional<String> getAuthorityKeyIdentifier() {
+        return Optional.ofNullable(authorityKeyIdentifier);
+    }
+
+    public Instant getNotAfter() {
+        return notAfter;
+    }
+
+    public boolean isCertificateAuthority() {
+        return certificateAuthority;
+    }
+
+    /**
+     * @return the caIssuers URIs of the authority information access extension, in the order they are listed in
+     */
+    public List<String> getCaIssuersUrls() {
+        return caIssuersUrls;
+    }
+
+    public boolean isSelfIssued() {
+        return selfIssued;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return this == other || (other instanceof CertificateInfo && fingerprint.equals(((CertificateInfo) other).fingerprint));
+    }
+
+    @Override
+    public int hashCode() {
+        return fingerprint.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return simpleName;
+    }
+
+    private static String readSubjectKeyIdentifier(final X509Certificate certificate) {
+        final byte[] extensionValue = certificate.getExtensionValue(SUBJECT_KEY_IDENTIFIER_OID);
+        if (extensionValue == null) {
+            return null;
+        }
+        try {
+            // OCTET STRING { SubjectKeyIdentifier ::= KeyIdentifier ::= OCTET STRING }
+            final byte[] extension = new DerReader(extensionValue).read(DerReader.TAG_OCTET_STRING);
+            return X509Utils.toHex(new DerReader(extension).read(DerReader.TAG_OCTET_STRING));
+        } catch (IllegalArgumentException e) {
+            return null; // Malformed extensions are treated as absent
+        }
+    }
+
+    private static String readAuthorityKeyIdentifier(final X509Certificate certificate) {
+        final byte[] extensionValue = certificate.getExtensionValue(AUTHORITY_KEY_IDENTIFIER_OID);
+        if (extensionValue == null) {
+            return null;
+        }
+        try {
+            // OCTET STRING { AuthorityKeyIdentifier ::= SEQUENCE { keyIdentifier [0] IMPLICIT KeyIdentifier OPTIONAL, ... } }
+            final byte[] extension = new DerReader(extensionValue).read(DerReader.TAG_OCTET_STRING);
+            final DerReader sequence = new DerReader(extension).readConstructed(DerReader.TAG_SEQUENCE);
+            if (sequence.hasNext() && sequence.peekTag() == AUTHORITY_KEY_IDENTIFIER_KEY_ID_TAG) {
+                return X509Utils.toHex(sequence.read(AUTHORITY_KEY_IDENTIFIER_KEY_ID_TAG));
+            }
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null; // Malformed extensions are treated as absent
+        }
+    }
+
+    private static List<String> readCaIssuersUrls(final X509Certificate certificate) {
+        final byte[] extensionValue = certificate.getExtensionValue(AUTHORITY_INFO_ACCESS_OID);
+        if (extensionValue == null) {
+            return Collections.emptyList();
+        }
+        try {
+            // OCTET STRING { AuthorityInfoAccessSyntax ::= SEQUENCE OF AccessDescription }
+            // AccessDescription ::= SEQUENCE { accessMethod OBJECT IDENTIFIER, accessLocation GeneralName }
+            final byte[] extension = new DerReader(extensionValue).read(DerReader.TAG_OCTET_STRING);
+            final DerReader accessDescriptions = new DerReader(extension).readConstructed(DerReader.TAG_SEQUENCE);
+            final List<String> urls = new ArrayList<>();
+            while (accessDescriptions.hasNext()) {
+                final DerReader accessDescription = accessDescriptions.readConstructed(DerReader.TAG_SEQUENCE);
+                final byte[] accessMethod = accessDescription.read(DerReader.TAG_OBJECT_IDENTIFIER);
+                if (Arrays.equals(accessMethod, CA_ISSUERS_ACCESS_METHOD) && accessDescription.peekTag() == GENERAL_NAME_URI_TAG) {
+                    urls.add(new String(accessDescription.read(GENERAL_NAME_URI_TAG), StandardCharsets.US_ASCII));
+                }
+            }
+            return Collections.unmodifiableList(urls);
+        } catch (IllegalArgumentException e) {
+            return Collections.emptyList(); // Malformed extensions are treated as absent
+        }
+    }
+
+}
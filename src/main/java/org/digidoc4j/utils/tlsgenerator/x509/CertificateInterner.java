@@ -0,0 +1,58 @@
+package org.digidoc4j.utils.tlsgenerator.x509;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Process-wide interning of certificates by their SHA-256 fingerprints.
+ * <p>
+ * The same intermediate and root certificates are received over and over again in the chains of different endpoints.
+ * Interning replaces each received certificate with a single shared instance, whose metadata ({@link CertificateInfo})
+ * is computed only once. Comparing interned certificates (and chains of them) is then mostly an identity check instead
+ * of a comparison of their encodings.
+ * <p>
+ * Certificates that have already been interned are looked up by the certificate itself: its hash code is cached by
+ * the certificate and the lookup of a shared instance is resolved by identity. Only certificates seen for the first
+ * time are digested.
+ */
+public final class CertificateInterner {
+
+    private static final Map<String, CertificateInfo> INFOS_BY_FINGERPRINT = new ConcurrentHashMap<>();
+    private static final Map<X509Certificate, CertificateInfo> INFOS_BY_CERTIFICATE = new ConcurrentHashMap<>();
+
+    /**
+     * @param certificate certificate to intern
+     *
+     * @return the info of the shared instance of the certificate
+     */
+    public static CertificateInfo intern(final X509Certificate certificate) {
+        final CertificateInfo knownInfo = INFOS_BY_CERTIFICATE.get(certificate);
+        if (knownInfo != null) {
+            return knownInfo;
+        }
+        final CertificateInfo info = INFOS_BY_FINGERPRINT.computeIfAbsent(
+                X509Utils.computeCertificateFingerprint(certificate),
+                fingerprint -> new CertificateInfo(certificate, fingerprint)
+        );
+        INFOS_BY_CERTIFICATE.putIfAbsent(info.getCertificate(), info);
+        return info;
+    }
+
+    /**
+     * @param chain certificate chain to intern
+     *
+     * @return unmodifiable list of the shared instances of the certificates of the chain
+     */
+    public static List<X509Certificate> internChain(final List<X509Certificate> chain) {
+        return Collections.unmodifiableList(chain.stream()
+                .map(certificate -> intern(certificate).getCertificate())
+                .collect(Collectors.toList()));
+    }
+
+    private CertificateInterner() {}
+
+}
@@ -0,0 +1,84 @@
+package org.digidoc4j.utils.tlsgenerator.x509;
+
+import javax.security.auth.x500.X500Principal;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Rebuilds the certification path of a certificate chain as sent by a server.
+ * <p>
+ * Servers may send their chains out of order, or with extra certificates such as cross-certificates or unrelated CAs.
+ * The path starts from the first certificate of the chain (the server certificate) and follows the issuers among the
+ * certificates of the chain, regardless of their positions. The certificates of the chain are indexed by their subject
+ * key identifiers and subject DNs, so that each issuer is looked up in constant time: rebuilding a path is linear in
+ * the length of its chain.
+ * <p>
+ * If a certificate has more than one issuer in the chain (e.g. a self-signed root and a cross-certificate of the same
+ * CA), the self-issued one is preferred, then the one sent first.
+ */
+public final class CertificatePath {
+
+    /**
+     * @param chain certificate chain as sent by a server
+     *
+     * @return the certification path of the first certificate of the chain, from the certificate towards its root
+     */
+    public static List<X509Certificate> build(final List<X509Certificate> chain) {
+        if (chain.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final Map<String, List<CertificateInfo>> certificatesByKeyId = new HashMap<>();
+        final Map<X500Principal, List<CertificateInfo>> certificatesBySubject = new HashMap<>();
+        for (final X509Certificate certificate : chain) {
+            final CertificateInfo info = CertificateInterner.intern(certificate);
+            info.getSubjectKeyIdentifier().ifPresent(keyId -> certificatesByKeyId.computeIfAbsent(keyId, k -> new ArrayList<>(1)).add(info));
+            certificatesBySubject.computeIfAbsent(certificate.getSubjectX500Principal(), k -> new ArrayList<>(1)).add(info);
+        }
+
+        final List<X509Certificate> path = new ArrayList<>();
+        final Set<CertificateInfo> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        CertificateInfo current = CertificateInterner.intern(chain.get(0));
+        while (current != null && visited.add(current)) {
+            path.add(current.getCertificate());
+            current = current.isSelfIssued() ? null : findIssuer(current, certificatesByKeyId, certificatesBySubject, visited).orElse(null);
+        }
+        return Collections.unmodifiableList(path);
+    }
+
+    private static Optional<CertificateInfo> findIssuer(final CertificateInfo certificate,
+                                                        final Map<String, List<CertificateInfo>> certificatesByKeyId,
+                                                        final Map<X500Principal, List<CertificateInfo>> certificatesBySubject,
+                                                        final Set<CertificateInfo> visited) {
+        final X500Principal issuer = certificate.getCertificate().getIssuerX500Principal();
+        // Issuers without a subject key identifier can only be found by their subject DNs
+        final List<CertificateInfo> candidates = certificate.getAuthorityKeyIdentifier()
+                .map(certificatesByKeyId::get)
+                .orElseGet(() -> certificatesBySubject.get(issuer));
+        if (candidates == null) {
+            return Optional.empty();
+        }
+
+        CertificateInfo found = null;
+        for (final CertificateInfo candidate : candidates) {
+            if (!visited.contains(candidate) && candidate.getCertificate().getSubjectX500Principal().equals(issuer)) {
+                if (candidate.isSelfIssued()) {
+                    return Optional.of(candidate);
+                } else if (found == null) {
+                    found = candidate;
+                }
+            }
+        }
+        return Optional.ofNullable(found);
+    }
+
+    private CertificatePath() {}
+
+}
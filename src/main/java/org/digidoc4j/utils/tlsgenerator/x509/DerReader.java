@@ -0,0 +1,103 @@
+package org.digidoc4j.utils.tlsgenerator.x509;
+
+import java.util.Arrays;
+
+/**
+ * Minimal reader of DER encoded values, sufficient for picking fields out of certificate extensions.
+ * <p>
+ * Only definite lengths and single-byte tags are supported, which is all DER allows for the structures read here.
+ */
+final class DerReader {
+
+    static final int TAG_OCTET_STRING = 0x04;
+    static final int TAG_OBJECT_IDENTIFIER = 0x06;
+    static final int TAG_SEQUENCE = 0x30;
+
+    private final byte[] encoded;
+    private final int end;
+    private int position;
+
+    DerReader(final byte[] encoded) {
+        this(encoded, 0, encoded.length);
+    }
+
+    private DerReader(final byte[] encoded, final int start, final int end) {
+        this.encoded = encoded;
+        this.position = start;
+        this.end = end;
+    }
+
+    boolean hasNext() {
+        return position < end;
+    }
+
+    int peekTag() {
+        if (!hasNext()) {
+            throw new IllegalArgumentException("Unexpected end of DER value");
+        }
+        return encoded[position] & 0xFF;
+    }
+
+    /**
+     * Reads the next value and returns its contents.
+     *
+     * @param expectedTag tag the next value must have
+     *
+     * @return the contents of the value
+     *
+     * @throws IllegalArgumentException if the next value has a different tag or is malformed
+     */
+    byte[] read(final int expectedTag) {
+        final int contentsEnd = readHeader(expectedTag);
+        final byte[] contents = Arrays.copyOfRange(encoded, position, contentsEnd);
+        position = contentsEnd;
+        return contents;
+    }
+
+    /**
+     * Reads the next constructed value and returns a reader of its contents.
+     *
+     * @param expectedTag tag the next value must have
+     *
+     * @return reader of the contents of the value
+     *
+     * @throws IllegalArgumentException if the next value has a different tag or is malformed
+     */
+    DerReader readConstructed(final int expectedTag) {
+        final int contentsEnd = readHeader(expectedTag);
+        final DerReader contents = new DerReader(encoded, position, contentsEnd);
+        position = contentsEnd;
+        return contents;
+    }
+
+    private int readHeader(final int expectedTag) {
+        final int tag = peekTag();
+        if (tag != expectedTag) {
+            throw new IllegalArgumentException(String.format("Unexpected DER tag: expected 0x%02x, found 0x%02x", expectedTag, tag));
+        }
+        ++position;
+        int length = nextByte();
+        if (length > 0x7F) {
+            final int lengthBytes = length & 0x7F;
+            if (lengthBytes == 0 || lengthBytes > 3) {
+                throw new IllegalArgumentException("Unsupported DER length encoding");
+            }
+            length = 0;
+            for (int i = 0; i < lengthBytes; ++i) {
+                length = (length << 8) | nextByte();
+            }
+        }
+        if (length > end - position) {
+            throw new IllegalArgumentException("DER value exceeds its enclosing value");
+        }
+        return position + length;
+    }
+
+    private int nextByte() {
+        if (!hasNext()) {
+            throw new IllegalArgumentException("Unexpected end of DER value");
+        }
+        return encoded[position++] & 0xFF;
+    }
+
+}
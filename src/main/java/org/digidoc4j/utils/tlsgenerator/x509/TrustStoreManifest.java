@@ -0,0 +1,191 @@
+package org.digidoc4j.utils.tlsgenerator.x509;
+
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.tls.FetchTarget;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Sidecar file of a truststore, recording the fingerprints of the certificates pinned for each endpoint
+ * ({@link FetchTarget}) the truststore was generated from, and a digest of the content of the truststore.
+ * <p>
+ * The content digest is computed over the type of the truststore and the sorted aliases and fingerprints of its
+ * entries, so unlike the truststore file itself (e.g. PKCS12 files are salted anew each time they are written),
+ * it stays the same for as long as the truststore would contain the same certificates under the same aliases.
+ * <p>
+ * The manifest is stored as a properties file next to the truststore, with the {@value #FILE_EXTENSION} extension
+ * appended to the name of the truststore.
+ */
+public final class TrustStoreManifest {
+
+    private static final String FILE_EXTENSION = ".manifest";
+    private static final String ENDPOINT_KEY_PREFIX = "endpoint.";
+    private static final String FINGERPRINT_SEPARATOR = ",";
+    private static final String CONTENT_DIGEST_KEY = "content.digest";
+    private static final String CONTENT_DIGEST_ALGORITHM = "SHA-256";
+
+    private final Path path;
+    private final Map<String, Set<String>> fingerprintsByEndpoint = new TreeMap<>();
+    private String contentDigest;
+
+    private TrustStoreManifest(final Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Creates a new empty manifest for the specified truststore.
+     *
+     * @param trustStorePath path of the truststore
+     *
+     * @return empty manifest
+     */
+    public static TrustStoreManifest create(final Path trustStorePath) {
+        return new TrustStoreManifest(getManifestPath(trustStorePath));
+    }
+
+    /**
+     * Loads the manifest of the specified truststore.
+     * If the truststore has no manifest, an empty manifest is returned.
+     *
+     * @param trustStorePath path of the truststore
+     *
+     * @return manifest of the truststore
+     */
+    public static TrustStoreManifest load(final Path trustStorePath) {
+        final TrustStoreManifest manifest = create(trustStorePath);
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(manifest.path)) {
+            properties.load(in);
+        } catch (NoSuchFileException e) {
+            return manifest;
+        } catch (IOException | IllegalArgumentException e) {
+            throw new TlsGeneratorTechnicalException("Failed to load truststore manifest: " + manifest.path + ": " + e.getMessage(), e);
+        }
+
+        properties.stringPropertyNames().stream()
+                .filter(key -> key.startsWith(ENDPOINT_KEY_PREFIX))
+                .forEach(key -> manifest.fingerprintsByEndpoint.put(
+                        key.substring(ENDPOINT_KEY_PREFIX.length()),
+                        Arrays.stream(properties.getProperty(key).split(FINGERPRINT_SEPARATOR))
+                                .map(String::trim)
+                                .filter(fingerprint -> !fingerprint.isEmpty())
+                                .collect(Collectors.toCollection(LinkedHashSet::new))
+                ));
+        manifest.contentDigest = properties.getProperty(CONTENT_DIGEST_KEY);
+        return manifest;
+    }
+
+    public Set<String> getFingerprints(final FetchTarget target) {
+        return Collections.unmodifiableSet(fingerprintsByEndpoint.getOrDefault(target.toString(), Collections.emptySet()));
+    }
+
+    public void setFingerprints(final FetchTarget target, final Collection<String> fingerprints) {
+        fingerprintsByEndpoint.put(target.toString(), new LinkedHashSet<>(Objects.requireNonNull(fingerprints)));
+    }
+
+    public Optional<String> getContentDigest() {
+        return Optional.ofNullable(contentDigest);
+    }
+
+    public void setContentDigest(final String contentDigest) {
+        this.contentDigest = contentDigest;
+    }
+
+    /**
+     * Checks whether this manifest records the same endpoints, fingerprints and content digest as the specified
+     * manifest, so that saving this manifest over the specified one would not change anything.
+     *
+     * @param other another manifest
+     *
+     * @return {@code true} if the manifests are equivalent, {@code false} otherwise
+     */
+    public boolean isEquivalentTo(final TrustStoreManifest other) {
+        return fingerprintsByEndpoint.equals(other.fingerprintsByEndpoint) && Objects.equals(contentDigest, other.contentDigest);
+    }
+
+    /**
+     * Computes the canonical digest of the content of a truststore.
+     *
+     * @param type type of the truststore
+     * @param fingerprintsByAlias fingerprints of the certificates of the truststore, by their aliases
+     *
+     * @return lower-case hex encoded digest
+     */
+    public static String computeContentDigest(final String type, final Map<String, String> fingerprintsByAlias) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(CONTENT_DIGEST_ALGORITHM);
+            digest.update(type.toUpperCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+            fingerprintsByAlias.entrySet().stream()
+                    // Key store aliases are case-insensitive, and some key store types only keep them in lower case
+                    .map(entry -> "\n" + entry.getKey().toLowerCase(Locale.ROOT) + "\t" + entry.getValue())
+                    .sorted()
+                    .forEachOrdered(line -> digest.update(line.getBytes(StandardCharsets.UTF_8)));
+            return X509Utils.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new TlsGeneratorTechnicalException("Failed to compute truststore content digest: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Checks whether the specified fingerprint is pinned for any endpoint in this manifest.
+     *
+     * @param fingerprint certificate fingerprint
+     *
+     * @return {@code true} if any endpoint references the fingerprint, {@code false} otherwise
+     */
+    public boolean isReferenced(final String fingerprint) {
+        return fingerprintsByEndpoint.values().stream().anyMatch(fingerprints -> fingerprints.contains(fingerprint));
+    }
+
+    /**
+     * Writes this manifest to disk, replacing the previous manifest atomically.
+     */
+    public void save() {
+        final Properties properties = new Properties();
+        fingerprintsByEndpoint.forEach((endpoint, fingerprints) ->
+                properties.setProperty(ENDPOINT_KEY_PREFIX + endpoint, String.join(FINGERPRINT_SEPARATOR, fingerprints)));
+        if (contentDigest != null) {
+            properties.setProperty(CONTENT_DIGEST_KEY, contentDigest);
+        }
+
+        try {
+            final Path temporaryFile = TrustStoreOutput.createTemporaryFile(path);
+            try {
+                try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+                    properties.store(out, "TLS truststore manifest");
+                }
+                Files.move(temporaryFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        } catch (IOException e) {
+            throw new TlsGeneratorTechnicalException("Failed to save truststore manifest: " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Path getManifestPath(final Path trustStorePath) {
+        return trustStorePath.resolveSibling(trustStorePath.getFileName() + FILE_EXTENSION);
+    }
+
+}
@@ -2,57 +2,392 @@ package org.digidoc4j.utils.tlsgenerator.x509;
 
 import org.digidoc4j.utils.tlsgenerator.cli.CommandLineArgument;
 import org.digidoc4j.utils.tlsgenerator.cli.CommandLineInterface;
+import org.digidoc4j.utils.tlsgenerator.concurrent.ConcurrencyUtils;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorInputException;
 import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.tls.FetchTarget;
 
-import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
+/**
+ * Output of newly generated truststores.
+ * <p>
+ * The same set of certificates can be written to multiple outputs in one run, each with its own path and type: any
+ * {@link KeyStore} type (e.g. PKCS12 or JKS), or {@value #PEM_TYPE} for a bundle of PEM encoded certificates. Aliases
+ * are assigned once and shared by all the outputs. The outputs are written concurrently, each to a temporary file next
+ * to its final path that is then atomically moved into place, so that readers of an output never see it half-written.
+ * <p>
+ * An output is not rewritten at all if the content digest recorded in its manifest (see {@link TrustStoreManifest})
+ * matches its new content, and (for key store types) the existing output can be loaded with the current password.
+ */
 public final class TrustStoreOutput {
 
-    private static final String DEFAULT_TRUSTSTORE_TYPE = "PKCS12";
+    public static final String PEM_TYPE = "PEM";
 
-    public static void saveCertificatesToTruststore(final Set<X509Certificate> certificates, final Map<CommandLineArgument, List<String>> options) {
-        final String type = options.getOrDefault(CommandLineArgument.TYPE, Collections.singletonList(DEFAULT_TRUSTSTORE_TYPE)).get(0);
-        final String path = options.get(CommandLineArgument.OUT).get(0);
-        final char[] password = getTrustStorePassword(options);
+    private static final String DEFAULT_TRUSTSTORE_TYPE = "PKCS12";
+    private static final String THREAD_NAME_PREFIX = "truststore-writer-";
+    private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+    private static final int ALIAS_FINGERPRINT_LENGTH = 8;
+    private static final int PEM_LINE_LENGTH = 64;
 
-        try {
-            final KeyStore trustStore = KeyStore.getInstance(type);
-            trustStore.load(null, password);
+    /**
+     * Creates new truststores containing all the specified certificates and saves them, along with their manifests,
+     * to the paths specified by the {@code --out} argument, in the types specified by the {@code --type} argument.
+     *
+     * @param certificatesByTarget certificates to pin, grouped by the endpoints they were fetched from
+     * @param options parsed command line arguments
+     *
+     * @return {@code true} if any truststore was written, {@code false} if all of them were unchanged
+     */
+    public static boolean saveCertificatesToTruststore(final Map<FetchTarget, Set<X509Certificate>> certificatesByTarget, final Map<CommandLineArgument, List<String>> options) {
+        final List<String> paths = options.get(CommandLineArgument.OUT);
+        final List<String> types = getTrustStoreTypes(options);
+        final char[] password = types.stream().allMatch(TrustStoreOutput::isPemType)
+                ? new char[0] : getTrustStorePassword(options);
 
-            certificates.forEach(c -> addCertificateToTrustStore(trustStore, c));
+        final Map<String, X509Certificate> certificatesByAlias = assignAliases(certificatesByTarget.values().stream()
+                .flatMap(Set::stream)
+                .distinct()
+                .collect(Collectors.toList()));
 
-            try (OutputStream out = new FileOutputStream(path)) {
-                trustStore.store(out, password);
+        final ExecutorService executor = Executors.newFixedThreadPool(paths.size(), ConcurrencyUtils.createDaemonThreadFactory(THREAD_NAME_PREFIX));
+        try {
+            final List<Future<Boolean>> pendingOutputs = new ArrayList<>();
+            for (int i = 0; i < paths.size(); ++i) {
+                final Path path = Paths.get(paths.get(i));
+                final String type = types.get(i);
+                pendingOutputs.add(executor.submit(() -> saveOutput(path, type, password, certificatesByAlias, certificatesByTarget)));
             }
-        } catch (KeyStoreException | CertificateException | NoSuchAlgorithmException | IOException e) {
-            throw new TlsGeneratorTechnicalException("Failed to create truststore: " + e.getMessage(), e);
+            // Let every output finish, so that a failing output does not leave the others half-written
+            TlsGeneratorTechnicalException failure = null;
+            boolean written = false;
+            for (final Future<Boolean> pendingOutput : pendingOutputs) {
+                try {
+                    written |= pendingOutput.get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = ConcurrencyUtils.unwrapCompletionException(e);
+                    if (failure == null) {
+                        failure = (cause instanceof TlsGeneratorTechnicalException) ? (TlsGeneratorTechnicalException) cause
+                                : new TlsGeneratorTechnicalException("Failed to create truststore: " + cause.getMessage(), cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return written;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TlsGeneratorTechnicalException("Interrupted while saving truststores", e);
         } finally {
+            executor.shutdownNow();
             Arrays.fill(password, '\0');
         }
     }
 
-    private static void addCertificateToTrustStore(final KeyStore trustStore, final X509Certificate certificate) {
-        final String alias = X509Utils.getCertificateSimpleName(certificate);
+    /**
+     * Verifies the output paths and types specified by the {@code --out} and {@code --type} arguments.
+     *
+     * @param options parsed command line arguments
+     *
+     * @throws TlsGeneratorInputException if the outputs are specified incorrectly
+     */
+    public static void verifyOutputParameters(final Map<CommandLineArgument, List<String>> options) {
+        final List<String> paths = options.get(CommandLineArgument.OUT);
+        final Set<Path> normalizedPaths = new HashSet<>();
+        for (final String path : paths) {
+            try {
+                if (!normalizedPaths.add(Paths.get(path).toAbsolutePath().normalize())) {
+                    throw new TlsGeneratorInputException("Duplicate output parameter: " + path);
+                }
+            } catch (InvalidPathException e) {
+                throw new TlsGeneratorInputException("Invalid output parameter: " + e.getMessage(), e);
+            }
+        }
+        final List<String> types = options.getOrDefault(CommandLineArgument.TYPE, Collections.singletonList(DEFAULT_TRUSTSTORE_TYPE));
+        if (types.size() != 1 && types.size() != paths.size()) {
+            throw new TlsGeneratorInputException(String.format(
+                    "Invalid type parameters: Expected 1 or %d truststore types, found %d", paths.size(), types.size()));
+        }
+        if (options.containsKey(CommandLineArgument.UPDATE) && (paths.size() != 1 || isPemType(types.get(0)))) {
+            throw new TlsGeneratorInputException("Only a single truststore of a key store type can be updated");
+        }
+    }
+
+    private static boolean saveOutput(final Path path, final String type, final char[] password,
+                                      final Map<String, X509Certificate> certificatesByAlias,
+                                      final Map<FetchTarget, Set<X509Certificate>> certificatesByTarget) {
+        final TrustStoreManifest manifest = TrustStoreManifest.create(path);
+        certificatesByTarget.forEach((target, certificates) -> manifest.setFingerprints(target, certificates.stream()
+                .map(X509Utils::getCertificateFingerprint)
+                .collect(Collectors.toList())));
+        final Map<String, String> fingerprintsByAlias = new LinkedHashMap<>();
+        certificatesByAlias.forEach((alias, certificate) -> fingerprintsByAlias.put(alias, X509Utils.getCertificateFingerprint(certificate)));
+        manifest.setContentDigest(TrustStoreManifest.computeContentDigest(type, fingerprintsByAlias));
+
+        final Optional<TrustStoreManifest> previousManifest = loadPreviousManifest(path);
+        if (previousManifest.isPresent() && isUnchanged(path, type, password, manifest, previousManifest.get())) {
+            if (!manifest.isEquivalentTo(previousManifest.get())) {
+                manifest.save();
+            }
+            System.out.println("Unchanged: " + path);
+            return false;
+        }
+
         try {
-            trustStore.setCertificateEntry(alias, certificate);
+            if (isPemType(type)) {
+                writeAtomically(path, out -> writePemBundle(certificatesByAlias, out));
+            } else {
+                final KeyStore trustStore = KeyStore.getInstance(type);
+                trustStore.load(null, password);
+                for (final Map.Entry<String, X509Certificate> entry : certificatesByAlias.entrySet()) {
+                    trustStore.setCertificateEntry(entry.getKey(), entry.getValue());
+                }
+                writeTrustStore(trustStore, path, password);
+            }
+            manifest.save();
+            System.out.println("Saved: " + path);
+            return true;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new TlsGeneratorTechnicalException("Failed to create truststore: " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Optional<TrustStoreManifest> loadPreviousManifest(final Path path) {
+        try {
+            return Optional.of(TrustStoreManifest.load(path));
+        } catch (TlsGeneratorTechnicalException e) {
+            return Optional.empty(); // An unreadable manifest is simply replaced
+        }
+    }
+
+    private static boolean isUnchanged(final Path path, final String type, final char[] password,
+                                       final TrustStoreManifest manifest, final TrustStoreManifest previousManifest) {
+        if (!Files.isRegularFile(path) || !manifest.getContentDigest().equals(previousManifest.getContentDigest())) {
+            return false;
+        } else if (isPemType(type)) {
+            return true;
+        }
+        // The digest does not cover the password, so make sure the existing truststore is still usable as it is
+        try (InputStream in = Files.newInputStream(path)) {
+            KeyStore.getInstance(type).load(in, password);
+            return true;
+        } catch (GeneralSecurityException | IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds the specified certificate to the truststore under an alias derived from its simple name. If the alias is
+     * already taken by another certificate, the beginning of (or if needed, the whole) fingerprint of the certificate is
+     * appended to it, so that certificates with the same name never replace each other.
+     *
+     * @return the alias of the added certificate
+     */
+    static String addCertificateToTrustStore(final KeyStore trustStore, final X509Certificate certificate) {
+        final CertificateInfo info = CertificateInterner.intern(certificate);
+        final String alias = chooseAlias(info, candidate -> {
+            try {
+                return trustStore.containsAlias(candidate) && !info.getCertificate().equals(trustStore.getCertificate(candidate));
+            } catch (KeyStoreException e) {
+                throw new TlsGeneratorTechnicalException("Failed to add certificate to truststore: " + candidate, e);
+            }
+        });
+        try {
+            trustStore.setCertificateEntry(alias, info.getCertificate());
+            return alias;
         } catch (KeyStoreException e) {
             throw new TlsGeneratorTechnicalException("Failed to add certificate to truststore: " + alias, e);
         }
     }
 
-    private static char[] getTrustStorePassword(final Map<CommandLineArgument, List<String>> options) {
+    private static Map<String, X509Certificate> assignAliases(final List<X509Certificate> certificates) {
+        // Key store aliases are case-insensitive
+        final Set<String> takenAliases = new HashSet<>();
+        final Map<String, X509Certificate> certificatesByAlias = new LinkedHashMap<>();
+        for (final X509Certificate certificate : certificates) {
+            final CertificateInfo info = CertificateInterner.intern(certificate);
+            final String alias = chooseAlias(info, candidate -> takenAliases.contains(candidate.toLowerCase(Locale.ROOT)));
+            takenAliases.add(alias.toLowerCase(Locale.ROOT));
+            certificatesByAlias.put(alias, info.getCertificate());
+        }
+        return certificatesByAlias;
+    }
+
+    private static String chooseAlias(final CertificateInfo info, final Predicate<String> isTaken) {
+        final List<String> candidates = Arrays.asList(
+                info.getSimpleName(),
+                info.getSimpleName() + " (" + info.getFingerprint().substring(0, ALIAS_FINGERPRINT_LENGTH) + ")",
+                info.getSimpleName() + " (" + info.getFingerprint() + ")"
+        );
+        return candidates.stream()
+                .filter(isTaken.negate())
+                .findFirst()
+                .orElseThrow(() -> new TlsGeneratorTechnicalException("Failed to add certificate to truststore: Alias already taken: "
+                        + candidates.get(candidates.size() - 1)));
+    }
+
+    private static void writePemBundle(final Map<String, X509Certificate> certificatesByAlias, final OutputStream out)
+            throws IOException, CertificateEncodingException {
+        final Base64.Encoder encoder = Base64.getMimeEncoder(PEM_LINE_LENGTH, "\n".getBytes(StandardCharsets.US_ASCII));
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        for (final Map.Entry<String, X509Certificate> entry : certificatesByAlias.entrySet()) {
+            writer.write("# " + entry.getKey().replaceAll("[\\r\\n]+", " ") + "\n");
+            writer.write("-----BEGIN CERTIFICATE-----\n");
+            writer.write(encoder.encodeToString(entry.getValue().getEncoded()));
+            writer.write("\n-----END CERTIFICATE-----\n");
+        }
+        writer.flush();
+    }
+
+    static void writeTrustStore(final KeyStore trustStore, final Path path, final char[] password)
+            throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException {
+        try {
+            writeAtomically(path, out -> trustStore.store(out, password));
+        } catch (KeyStoreException | CertificateException | NoSuchAlgorithmException | IOException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw new KeyStoreException(e);
+        }
+    }
+
+    /**
+     * Writes a file into a temporary file next to it, and then moves the temporary file into place atomically.
+     */
+    private static void writeAtomically(final Path path, final ContentWriter contentWriter) throws IOException, GeneralSecurityException {
+        final Path absolutePath = path.toAbsolutePath();
+        final Path temporaryFile = createTemporaryFile(absolutePath);
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporaryFile))) {
+                contentWriter.write(out);
+            }
+            Files.move(temporaryFile, absolutePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Creates an empty temporary file next to the specified file, for replacing that file atomically.
+     * <p>
+     * The temporary file gets the POSIX permissions of the file it replaces, and also its owner and group as far as
+     * the user is allowed to set them. If there is no file to replace yet, the temporary file gets the default
+     * permissions of new files, as limited by the umask.
+     *
+     * @param path path of the file to be replaced
+     *
+     * @return path of the temporary file
+     *
+     * @throws IOException if creating the temporary file fails
+     */
+    static Path createTemporaryFile(final Path path) throws IOException {
+        final Path absolutePath = path.toAbsolutePath();
+        Path temporaryFile;
+        while (true) {
+            // Unlike Files.createTempFile, which restricts the permissions to the owner, this applies the umask
+            temporaryFile = absolutePath.resolveSibling("." + absolutePath.getFileName()
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + TEMPORARY_FILE_EXTENSION);
+            try {
+                Files.createFile(temporaryFile);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // Try another name
+            }
+        }
+        try {
+            copyPosixAttributes(absolutePath, temporaryFile);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+        return temporaryFile;
+    }
+
+    private static void copyPosixAttributes(final Path source, final Path target) throws IOException {
+        final PosixFileAttributeView targetView = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+        if (targetView == null) {
+            return; // Not a POSIX file system
+        }
+        final PosixFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(source, PosixFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return; // Nothing to replace, keep the default permissions
+        }
+        targetView.setPermissions(attributes.permissions());
+        try {
+            targetView.setGroup(attributes.group());
+        } catch (IOException e) {
+            // Only groups that the user is a member of can be set
+        }
+        try {
+            targetView.setOwner(attributes.owner());
+        } catch (IOException e) {
+            // Only privileged users can give files away
+        }
+    }
+
+    private static boolean isPemType(final String type) {
+        return PEM_TYPE.equalsIgnoreCase(type);
+    }
+
+    private static List<String> getTrustStoreTypes(final Map<CommandLineArgument, List<String>> options) {
+        final List<String> types = options.getOrDefault(CommandLineArgument.TYPE, Collections.singletonList(DEFAULT_TRUSTSTORE_TYPE));
+        return (types.size() == 1)
+                ? Collections.nCopies(options.get(CommandLineArgument.OUT).size(), types.get(0))
+                : types;
+    }
+
+    static String getTrustStoreType(final Map<CommandLineArgument, List<String>> options) {
+        return options.getOrDefault(CommandLineArgument.TYPE, Collections.singletonList(DEFAULT_TRUSTSTORE_TYPE)).get(0);
+    }
+
+    static Path getTrustStorePath(final Map<CommandLineArgument, List<String>> options) {
+        return Paths.get(options.get(CommandLineArgument.OUT).get(0));
+    }
+
+    static char[] getTrustStorePassword(final Map<CommandLineArgument, List<String>> options) {
         if (options.containsKey(CommandLineArgument.PASSWORD)) {
             return options.get(CommandLineArgument.PASSWORD).get(0).toCharArray();
         }
@@ -60,6 +395,13 @@ public final class TrustStoreOutput {
                 .readPassword("Input truststore password: ");
     }
 
+    @FunctionalInterface
+    private interface ContentWriter {
+
+        void write(OutputStream out) throws IOException, GeneralSecurityException;
+
+    }
+
     private TrustStoreOutput() {}
 
 }
@@ -0,0 +1,167 @@
+package org.digidoc4j.utils.tlsgenerator.x509;
+
+import org.digidoc4j.utils.tlsgenerator.cli.CommandLineArgument;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.digidoc4j.utils.tlsgenerator.tls.FetchTarget;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Incremental update of an existing truststore.
+ * <p>
+ * The entries of the existing truststore are indexed by their fingerprints. An endpoint is considered up to date if
+ * the manifest of the truststore lists the certificates pinned for it, all of these certificates are present in the
+ * truststore and none of them expires within the renewal margin. Only the endpoints that are not up to date need to be
+ * fetched; their new certificates are added to the truststore, and their previous certificates that are no longer
+ * pinned for any endpoint are removed from it.
+ */
+public final class TrustStoreUpdate {
+
+    private final Path path;
+    private final String type;
+    private final char[] password;
+    private final KeyStore trustStore;
+    private final TrustStoreManifest manifest;
+    private final Instant renewalThreshold;
+    private final Map<String, String> aliasesByFingerprint = new HashMap<>();
+    private final Map<String, CertificateInfo> certificatesByFingerprint = new HashMap<>();
+
+    private TrustStoreUpdate(final Path path, final String type, final char[] password, final KeyStore trustStore,
+                             final Duration renewalMargin) throws KeyStoreException {
+        this.path = path;
+        this.type = type;
+        this.password = password;
+        this.trustStore = trustStore;
+        this.manifest = TrustStoreManifest.load(path);
+        this.renewalThreshold = Instant.now().plus(renewalMargin);
+
+        for (final String alias : Collections.list(trustStore.aliases())) {
+            final Certificate certificate = trustStore.getCertificate(alias);
+            if (trustStore.isCertificateEntry(alias) && certificate instanceof X509Certificate) {
+                final CertificateInfo info = CertificateInterner.intern((X509Certificate) certificate);
+                aliasesByFingerprint.put(info.getFingerprint(), alias);
+                certificatesByFingerprint.put(info.getFingerprint(), info);
+            }
+        }
+    }
+
+    /**
+     * Loads the truststore specified by the {@code --out} argument for updating.
+     *
+     * @param options parsed command line arguments
+     * @param renewalMargin how long before their expiry pinned certificates are renewed
+     *
+     * @return the loaded truststore, or an empty optional if the truststore does not exist yet
+     */
+    public static Optional<TrustStoreUpdate> load(final Map<CommandLineArgument, List<String>> options, final Duration renewalMargin) {
+        final Path path = TrustStoreOutput.getTrustStorePath(options);
+        if (!Files.exists(path)) {
+            return Optional.empty();
+        }
+
+        final char[] password = TrustStoreOutput.getTrustStorePassword(options);
+        final String type = TrustStoreOutput.getTrustStoreType(options);
+        try (InputStream in = Files.newInputStream(path)) {
+            final KeyStore trustStore = KeyStore.getInstance(type);
+            trustStore.load(in, password);
+            return Optional.of(new TrustStoreUpdate(path, type, password, trustStore, renewalMargin));
+        } catch (KeyStoreException | CertificateException | NoSuchAlgorithmException | IOException e) {
+            Arrays.fill(password, '\0');
+            throw new TlsGeneratorTechnicalException("Failed to load truststore: " + e.getMessage(), e);
+        }
+    }
+
+    public boolean isUpToDate(final FetchTarget target) {
+        final Set<String> fingerprints = manifest.getFingerprints(target);
+        return !fingerprints.isEmpty() && fingerprints.stream()
+                .map(certificatesByFingerprint::get)
+                .allMatch(info -> info != null && info.getNotAfter().isAfter(renewalThreshold));
+    }
+
+    /**
+     * Applies the newly fetched certificates to the truststore and saves the truststore along with its manifest.
+     * Endpoints that are not present in {@code certificatesByTarget} keep their previously pinned certificates.
+     *
+     * The truststore is not rewritten if its content digest (see {@link TrustStoreManifest}) stays the same.
+     *
+     * @param certificatesByTarget newly fetched certificates, grouped by the endpoints they were fetched from
+     *
+     * @return {@code true} if the truststore was written, {@code false} if it was unchanged
+     */
+    public boolean apply(final Map<FetchTarget, Set<X509Certificate>> certificatesByTarget) {
+        try {
+            final Set<String> replacedFingerprints = new LinkedHashSet<>();
+            for (final Map.Entry<FetchTarget, Set<X509Certificate>> entry : certificatesByTarget.entrySet()) {
+                final Set<String> fingerprints = new LinkedHashSet<>();
+                for (final X509Certificate certificate : entry.getValue()) {
+                    final CertificateInfo info = CertificateInterner.intern(certificate);
+                    final String fingerprint = info.getFingerprint();
+                    fingerprints.add(fingerprint);
+                    if (!aliasesByFingerprint.containsKey(fingerprint)) {
+                        final String alias = TrustStoreOutput.addCertificateToTrustStore(trustStore, certificate);
+                        aliasesByFingerprint.put(fingerprint, alias);
+                        certificatesByFingerprint.put(fingerprint, info);
+                        System.out.println("Added: " + alias);
+                    }
+                }
+                replacedFingerprints.addAll(manifest.getFingerprints(entry.getKey()));
+                replacedFingerprints.removeAll(fingerprints);
+                manifest.setFingerprints(entry.getKey(), fingerprints);
+            }
+
+            final List<String> removableFingerprints = replacedFingerprints.stream()
+                    .filter(fingerprint -> !manifest.isReferenced(fingerprint))
+                    .filter(aliasesByFingerprint::containsKey)
+                    .collect(Collectors.toList());
+            for (final String fingerprint : removableFingerprints) {
+                final String alias = aliasesByFingerprint.remove(fingerprint);
+                certificatesByFingerprint.remove(fingerprint);
+                trustStore.deleteEntry(alias);
+                System.out.println("Removed: " + alias);
+            }
+
+            final Map<String, String> fingerprintsByAlias = new HashMap<>();
+            aliasesByFingerprint.forEach((fingerprint, alias) -> fingerprintsByAlias.put(alias, fingerprint));
+            final Optional<String> previousContentDigest = manifest.getContentDigest();
+            manifest.setContentDigest(TrustStoreManifest.computeContentDigest(type, fingerprintsByAlias));
+
+            // The manifest has been modified in place, compare it with the one on disk
+            final boolean manifestChanged = !manifest.isEquivalentTo(TrustStoreManifest.load(path));
+            if (manifest.getContentDigest().equals(previousContentDigest)) {
+                if (manifestChanged) {
+                    manifest.save();
+                }
+                System.out.println("Unchanged: " + path);
+                return false;
+            }
+            TrustStoreOutput.writeTrustStore(trustStore, path, password);
+            manifest.save();
+            return true;
+        } catch (KeyStoreException | CertificateException | NoSuchAlgorithmException | IOException e) {
+            throw new TlsGeneratorTechnicalException("Failed to update truststore: " + e.getMessage(), e);
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+}
@@ -1,5 +1,10 @@
 package org.digidoc4j.utils.tlsgenerator.x509;
 
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.List;
@@ -9,6 +14,7 @@ public final class X509Utils {
 
     private static final String DN_SPLITTER_REGEX = "[\\s]*,[\\s]*";
     private static final String CN_PREFIX = "CN=";
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
 
     public static List<String> getCertificatesSimpleNames(final List<X509Certificate> certificates) {
         return certificates.stream()
@@ -17,6 +23,14 @@ public final class X509Utils {
     }
 
     public static String getCertificateSimpleName(final X509Certificate certificate) {
+        return CertificateInterner.intern(certificate).getSimpleName();
+    }
+
+    public static String getCertificateFingerprint(final X509Certificate certificate) {
+        return CertificateInterner.intern(certificate).getFingerprint();
+    }
+
+    static String computeCertificateSimpleName(final X509Certificate certificate) {
         final String subjectDn = certificate.getSubjectDN().getName();
         return Arrays.stream(subjectDn.split(DN_SPLITTER_REGEX))
                 .filter(e -> e.startsWith(CN_PREFIX))
@@ -25,6 +39,22 @@ public final class X509Utils {
                 .orElse(subjectDn);
     }
 
+    static String computeCertificateFingerprint(final X509Certificate certificate) {
+        try {
+            return toHex(MessageDigest.getInstance(FINGERPRINT_ALGORITHM).digest(certificate.getEncoded()));
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            throw new TlsGeneratorTechnicalException("Failed to compute certificate fingerprint: " + e.getMessage(), e);
+        }
+    }
+
+    static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
     private X509Utils() {}
 
 }
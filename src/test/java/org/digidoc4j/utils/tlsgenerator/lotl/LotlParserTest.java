@@ -0,0 +1,94 @@
+package org.digidoc4j.utils.tlsgenerator.lotl;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Pins the streaming parser to the output of the DOM based parser it replaced, which is reproduced here as a reference.
+ */
+public class LotlParserTest {
+
+    private static final List<String> LOTL_FIXTURES = Arrays.asList(
+            "/lotl/lotl-mixed-formats.xml",
+            "/lotl/lotl-edge-cases.xml",
+            "/lotl/lotl-empty-territory.xml"
+    );
+
+    @Test
+    public void streamingParserMatchesDomParser() throws Exception {
+        for (final String fixture : LOTL_FIXTURES) {
+            final List<String> expected = parseWithDom(fixture);
+            assertFalse("No TSL pointers in " + fixture, expected.isEmpty());
+            assertEquals("TSL pointers of " + fixture, expected, parseWithStax(fixture));
+        }
+    }
+
+    private static List<String> parseWithStax(final String fixture) throws Exception {
+        final List<String> tslPointers = new ArrayList<>();
+        try (InputStream in = LotlParserTest.class.getResourceAsStream(fixture)) {
+            LotlParser.parseLotl(in, fixture, tslPointer -> tslPointers.add(describe(tslPointer.getTerritory(), tslPointer.getUrl())));
+        }
+        return tslPointers;
+    }
+
+    private static List<String> parseWithDom(final String fixture) throws Exception {
+        final Element root;
+        try (InputStream in = LotlParserTest.class.getResourceAsStream(fixture)) {
+            root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in).getDocumentElement();
+        }
+        assertEquals("TrustServiceStatusList", root.getTagName());
+        return findElements(root, Arrays.asList("SchemeInformation", "PointersToOtherTSL", "OtherTSLPointer"))
+                .map(LotlParserTest::parseTslPointerWithDom)
+                .collect(Collectors.toList());
+    }
+
+    private static String parseTslPointerWithDom(final Element tslPointerElement) {
+        final String territory = findElements(tslPointerElement, Arrays.asList("AdditionalInformation", "OtherInformation", "SchemeTerritory"))
+                .map(Node::getTextContent)
+                .filter(Objects::nonNull)
+                .findFirst()
+                .orElse("");
+        final URL url = findElements(tslPointerElement, Arrays.asList("TSLLocation"))
+                .map(Node::getTextContent)
+                .filter(Objects::nonNull)
+                .map(LotlParserTest::toUrl)
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+        return describe(territory, url);
+    }
+
+    private static Stream<Element> findElements(final Element root, final List<String> path) {
+        final NodeList children = root.getElementsByTagName(path.get(0));
+        final Stream<Element> elements = IntStream.range(0, children.getLength()).mapToObj(children::item).map(Element.class::cast);
+        return (path.size() > 1) ? elements.flatMap(e -> findElements(e, path.subList(1, path.size()))) : elements;
+    }
+
+    private static URL toUrl(final String url) {
+        try {
+            return new URL(url);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String describe(final String territory, final URL url) {
+        return territory + ' ' + url.toExternalForm();
+    }
+
+}
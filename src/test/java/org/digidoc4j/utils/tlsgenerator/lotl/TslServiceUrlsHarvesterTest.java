@@ -0,0 +1,70 @@
+package org.digidoc4j.utils.tlsgenerator.lotl;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class TslServiceUrlsHarvesterTest {
+
+    private static final String MIXED_FORMATS_LOTL = "/lotl/lotl-mixed-formats.xml";
+
+    @Test
+    public void onlyXmlTslsAreHarvested() throws IOException {
+        final List<URL> parsedTslUrls = Collections.synchronizedList(new ArrayList<>());
+        final TslServiceUrlsHarvester harvester = new TslServiceUrlsHarvester((tslUrl, serviceUrlConsumer) -> {
+            parsedTslUrls.add(tslUrl);
+            serviceUrlConsumer.accept(toUrl("http://ocsp." + tslUrl.getHost() + "/"));
+        }, 1, exception -> { throw exception; });
+
+        final List<URL> urls = harvester.withServiceUrls(parseTslPointers(MIXED_FORMATS_LOTL).stream()).collect(Collectors.toList());
+
+        assertEquals(toUrls(
+                "https://tsl.example.ee/tsl.xml",
+                "https://tsl.example.lv/tsl.xml",
+                "https://tsl.example.lt/tsl.xml"
+        ), parsedTslUrls);
+        // The URLs of the skipped TSLs are still passed on, only their contents are not harvested
+        assertEquals(toUrls(
+                "https://tsl.example.ee/tsl.xml",
+                "http://ocsp.tsl.example.ee/",
+                "https://tsl.example.ee/tsl.pdf",
+                "https://tsl.example.lv/tsl.xml",
+                "http://ocsp.tsl.example.lv/",
+                "https://tsl.example.lv/tsl.pdf",
+                "https://tsl.example.lt/tsl.xml",
+                "http://ocsp.tsl.example.lt/"
+        ), urls);
+    }
+
+    private static List<TslPointer> parseTslPointers(final String resource) throws IOException {
+        final List<TslPointer> tslPointers = new ArrayList<>();
+        try (InputStream in = TslServiceUrlsHarvesterTest.class.getResourceAsStream(resource)) {
+            LotlParser.parseLotl(in, resource, tslPointers::add);
+        }
+        return tslPointers;
+    }
+
+    private static List<URL> toUrls(final String... urls) {
+        return Arrays.stream(urls).map(TslServiceUrlsHarvesterTest::toUrl).collect(Collectors.toList());
+    }
+
+    private static URL toUrl(final String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
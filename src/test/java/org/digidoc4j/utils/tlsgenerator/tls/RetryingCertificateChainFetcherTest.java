@@ -0,0 +1,82 @@
+package org.digidoc4j.utils.tlsgenerator.tls;
+
+import org.digidoc4j.utils.tlsgenerator.concurrent.ConcurrencyUtils;
+import org.digidoc4j.utils.tlsgenerator.exception.TlsGeneratorTechnicalException;
+import org.junit.Test;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryingCertificateChainFetcherTest {
+
+    private static final long COOL_DOWN = 200L;
+
+    @Test
+    public void nonTransientFailureOfTrialFetchClosesCircuit() throws Exception {
+        final URL url = new URL("https://example.com/");
+        final ScriptedFetcher scriptedFetcher = new ScriptedFetcher();
+        try (RetryingCertificateChainFetcher fetcher = new RetryingCertificateChainFetcher(scriptedFetcher, 0, 0, 1, COOL_DOWN, exception -> {})) {
+            // A transient failure reaching the threshold opens the circuit
+            scriptedFetcher.enqueue(ConcurrencyUtils.failedFuture(new ConnectException("Connection refused")));
+            assertFailure(fetcher.fetchCertificateChainAsync(url), ConnectException.class);
+
+            // While open, fetches fail without connecting
+            assertFailure(fetcher.fetchCertificateChainAsync(url), TlsGeneratorTechnicalException.class);
+            assertEquals(1, scriptedFetcher.fetches);
+
+            // After the cool-down, the trial fetch reaches the host but fails for another reason
+            Thread.sleep(COOL_DOWN * 2);
+            scriptedFetcher.enqueue(ConcurrencyUtils.failedFuture(new SSLHandshakeException("Handshake failure")));
+            assertFailure(fetcher.fetchCertificateChainAsync(url), SSLHandshakeException.class);
+            assertEquals(2, scriptedFetcher.fetches);
+
+            // The trial is settled and the circuit is closed, so the next fetch connects again
+            final List<X509Certificate> chain = Collections.emptyList();
+            scriptedFetcher.enqueue(CompletableFuture.completedFuture(chain));
+            assertSame(chain, fetcher.fetchCertificateChainAsync(url).join());
+            assertEquals(3, scriptedFetcher.fetches);
+        }
+    }
+
+    private static void assertFailure(final CompletableFuture<List<X509Certificate>> fetch, final Class<? extends Throwable> expectedCause) {
+        try {
+            fetch.join();
+            fail("Expected the fetch to fail with " + expectedCause.getSimpleName());
+        } catch (CompletionException e) {
+            final Throwable cause = ConcurrencyUtils.unwrapCompletionException(e);
+            assertTrue("Unexpected failure: " + cause, expectedCause.isInstance(cause));
+        }
+    }
+
+    private static final class ScriptedFetcher implements AsyncCertificateChainFetcher {
+
+        private final Deque<CompletableFuture<List<X509Certificate>>> results = new ArrayDeque<>();
+        private int fetches;
+
+        void enqueue(final CompletableFuture<List<X509Certificate>> result) {
+            results.add(result);
+        }
+
+        @Override
+        public CompletableFuture<List<X509Certificate>> fetchCertificateChainAsync(final URL url, final InetAddress address) {
+            ++fetches;
+            return results.remove();
+        }
+
+    }
+
+}
@@ -0,0 +1,51 @@
+package org.digidoc4j.utils.tlsgenerator.x509;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class TrustStoreOutputTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void assumePosixFileSystem() {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+    }
+
+    @Test
+    public void temporaryFileGetsPermissionsOfReplacedFile() throws Exception {
+        final Path trustStore = temporaryFolder.getRoot().toPath().resolve("truststore.p12");
+        Files.createFile(trustStore);
+        Files.setPosixFilePermissions(trustStore, PosixFilePermissions.fromString("rw-r-----"));
+
+        final Path temporaryFile = TrustStoreOutput.createTemporaryFile(trustStore);
+
+        assertEquals(trustStore.getParent(), temporaryFile.getParent());
+        assertEquals(Files.getPosixFilePermissions(trustStore), Files.getPosixFilePermissions(temporaryFile));
+        assertEquals(Files.getOwner(trustStore), Files.getOwner(temporaryFile));
+    }
+
+    @Test
+    public void temporaryFileForNewFileGetsDefaultPermissions() throws Exception {
+        final Path trustStore = temporaryFolder.getRoot().toPath().resolve("truststore.p12");
+        final Path newFile = Files.createFile(temporaryFolder.getRoot().toPath().resolve("new-file"));
+
+        final Path temporaryFile = TrustStoreOutput.createTemporaryFile(trustStore);
+
+        assertTrue(Files.exists(temporaryFile));
+        assertEquals(Files.getPosixFilePermissions(newFile), Files.getPosixFilePermissions(temporaryFile));
+    }
+
+}